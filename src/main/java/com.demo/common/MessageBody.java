@@ -1,5 +1,7 @@
 package com.demo.common;
 
+import com.demo.tools.ByteUtils;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.apache.commons.codec.binary.Base64;
 
@@ -9,6 +11,9 @@ public class MessageBody implements Serializable {
     private static final long serialVersionUID = 4359709211352400087L;
 
     private String payload;
+    // Raw device frame; payload (Base64) and payloadHex are derived from it on demand
+    private byte[] payloadBytes;
+    private transient String payloadHex;
     private String messageType;
     private String messageId;
     private String topic;
@@ -17,22 +22,52 @@ public class MessageBody implements Serializable {
     private String deviceName;
 
     public String getPayload() {
+        if (payload == null && payloadBytes != null) {
+            payload = Base64.encodeBase64String(payloadBytes);
+        }
         return payload;
     }
 
     public String getPayloadAsString(){
-        String data = new String(Base64.decodeBase64(getPayload()));
+        String data = new String(getPayloadAsBytes());
         return data;
     }
 
+    /**
+     * Raw payload bytes (shared, do not modify)
+     */
     public byte[] getPayloadAsBytes(){
-        byte[] data = null;
-        data = Base64.decodeBase64(getPayload());
-        return data;
+        if (payloadBytes == null && payload != null) {
+            payloadBytes = Base64.decodeBase64(payload);
+        }
+        return payloadBytes;
+    }
+
+    /**
+     * Payload as space separated hex, built once per message
+     */
+    @JsonIgnore
+    public String getPayloadAsHex(){
+        if (payloadHex == null) {
+            byte[] bytes = getPayloadAsBytes();
+            payloadHex = bytes == null ? null : ByteUtils.to16Hexs(bytes);
+        }
+        return payloadHex;
     }
 
     public void setPayload(String payload) {
         this.payload = payload;
+        this.payloadBytes = null;
+        this.payloadHex = null;
+    }
+
+    /**
+     * Set the raw payload of a device frame without encoding it
+     */
+    public void setPayloadBytes(byte[] payloadBytes) {
+        this.payloadBytes = payloadBytes;
+        this.payload = null;
+        this.payloadHex = null;
     }
 
     public String getMessageType() {
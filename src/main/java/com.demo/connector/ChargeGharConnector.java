@@ -5,28 +5,60 @@ import com.demo.security.SignChargeGharMain;
 import com.demo.message.ReceiveUpload;
 import com.demo.message.Powerbank;
 import com.demo.message.Pinboard;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Connector for ChargeGhar Main Django API
  * Handles authentication, data synchronization, and signature generation
+ *
+ * All requests share one pooled HttpClient, so connections to Django are
+ * kept alive between syncs instead of paying a TCP/TLS handshake per POST.
+ *
+ * With deltaSync enabled (off by default, until Django accepts type
+ * "delta"), station uploads are sent as "delta" payloads carrying only the
+ * slots, powerbanks and pinboards that changed since the last payload built
+ * for that station. A "full" snapshot is sent for a station's first upload,
+ * when its slot layout changes, every fullSyncIntervalMs and after
+ * requestFullSync(), which SyncOutbox calls whenever an upload is rejected
+ * or lost so the changes it carried are not skipped until the next interval.
+ * The per-station baseline lives in this node's memory, so delta mode is
+ * single-instance only: with mqtt.shared.enabled another node may send the
+ * station's next upload against a baseline this node never saw, and init()
+ * refuses to start with both enabled.
+ *
+ * Payloads are written with a streaming JsonGenerator into a per-thread
+ * reusable buffer; the resulting UTF-8 bytes are what gets queued, signed
+ * and sent (as a ByteArrayEntity), without an intermediate tree or String.
  */
 @Component
 public class ChargeGharConnector {
@@ -49,26 +81,83 @@ public class ChargeGharConnector {
     @Value("${chargeghar.main.stationDataEndpoint:/api/internal/stations/data}")
     private String stationDataEndpoint;
     
+    @Value("${chargeghar.main.bulkEndpoint:}")
+    private String bulkEndpoint;
+    
     @Value("${chargeghar.main.connectTimeout:10000}")
     private int connectTimeout;
     
     @Value("${chargeghar.main.readTimeout:15000}")
     private int readTimeout;
     
-    @Value("${chargeghar.main.maxRetries:3}")
-    private int maxRetries;
+    @Value("${chargeghar.main.leaseTimeout:5000}")
+    private int leaseTimeout;
+    
+    @Value("${chargeghar.main.maxConnections:20}")
+    private int maxConnections;
+    
+    @Value("${chargeghar.main.maxConnectionsPerRoute:10}")
+    private int maxConnectionsPerRoute;
+    
+    @Value("${chargeghar.main.idleTimeout:30000}")
+    private long idleTimeout;
+    
+    @Value("${chargeghar.main.deltaSync:false}")
+    private boolean deltaSync;
+    
+    @Value("${chargeghar.main.fullSyncIntervalMs:3600000}")
+    private long fullSyncIntervalMs;
+
+    @Value("${mqtt.shared.enabled:false}")
+    private boolean sharedSubscription;
+    
+    /**
+     * Last station state put into a payload, per station serial number
+     */
+    private final Map<String, SyncedState> syncedStates = new ConcurrentHashMap<>();
+    
+    private final AtomicLong fullSyncs = new AtomicLong();
+    private final AtomicLong deltaSyncs = new AtomicLong();
+    
+    /**
+     * Per-thread payload buffer, reused across payloads (keeps its capacity)
+     */
+    private final ThreadLocal<ByteArrayOutputStream> payloadBuffer =
+            ThreadLocal.withInitial(() -> new ByteArrayOutputStream(16 * 1024));
     
     private SignChargeGharMain signatureUtil;
     private ObjectMapper objectMapper;
+    private JsonFactory jsonFactory;
     private RequestConfig requestConfig;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
     
     @PostConstruct
     public void init() {
+        if (deltaSync && sharedSubscription) {
+            throw new IllegalStateException("chargeghar.main.deltaSync is single-instance only"
+                + " and cannot be used with mqtt.shared.enabled=true");
+        }
         this.signatureUtil = new SignChargeGharMain(signatureSecret);
         this.objectMapper = new ObjectMapper();
+        this.jsonFactory = objectMapper.getFactory();
         this.requestConfig = RequestConfig.custom()
                 .setConnectTimeout(connectTimeout)
                 .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(leaseTimeout)
+                .build();
+        
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(Math.max(1, maxConnections));
+        connectionManager.setDefaultMaxPerRoute(Math.max(1, maxConnectionsPerRoute));
+        // Re-check connections Django may have closed while they sat in the pool
+        connectionManager.setValidateAfterInactivity(2000);
+        
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
                 .build();
         
         System.out.println("ChargeGharConnector initialized:");
@@ -76,6 +165,57 @@ public class ChargeGharConnector {
         System.out.println("  Login Email: " + email);
         System.out.println("  Connect Timeout: " + connectTimeout + "ms");
         System.out.println("  Read Timeout: " + readTimeout + "ms");
+        System.out.println("  Connection Pool: " + connectionManager.getMaxTotal() + " total, "
+                + connectionManager.getDefaultMaxPerRoute() + " per route");
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            System.err.println("❌ Error closing ChargeGhar HTTP client: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Send the next upload of a station as a full snapshot
+     */
+    public void requestFullSync(String rentboxSN) {
+        syncedStates.remove(rentboxSN);
+    }
+    
+    /**
+     * Send the next upload of every station as a full snapshot
+     */
+    public void requestFullSyncAll() {
+        syncedStates.clear();
+    }
+    
+    /**
+     * Full vs delta station payloads built so far (for monitoring)
+     */
+    public Map<String, Object> getSyncStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("deltaSync", deltaSync);
+        stats.put("stations", syncedStates.size());
+        stats.put("fullPayloads", fullSyncs.get());
+        stats.put("deltaPayloads", deltaSyncs.get());
+        return stats;
+    }
+    
+    /**
+     * Connection pool utilization (for monitoring)
+     */
+    public Map<String, Object> getPoolStats() {
+        PoolStats totals = connectionManager.getTotalStats();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("leased", totals.getLeased());
+        stats.put("available", totals.getAvailable());
+        stats.put("pending", totals.getPending());
+        stats.put("max", totals.getMax());
+        stats.put("maxPerRoute", connectionManager.getDefaultMaxPerRoute());
+        return stats;
     }
     
     /**
@@ -86,10 +226,9 @@ public class ChargeGharConnector {
         System.out.println("========================================");
         System.out.println("AUTHENTICATING WITH CHARGEGHAR MAIN API");
         
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+        try {
             String loginUrl = baseUrl + loginEndpoint;
             HttpPost httpPost = new HttpPost(loginUrl);
-            httpPost.setConfig(requestConfig);
             
             // Build JSON request body
             ObjectNode requestBody = objectMapper.createObjectNode();
@@ -103,10 +242,13 @@ public class ChargeGharConnector {
             System.out.println("Login URL: " + loginUrl);
             System.out.println("Login Email: " + email);
             
-            // Execute request
-            HttpResponse response = httpClient.execute(httpPost);
-            int statusCode = response.getStatusLine().getStatusCode();
-            String responseBody = EntityUtils.toString(response.getEntity());
+            // Execute request (consuming the body returns the connection to the pool)
+            int statusCode;
+            String responseBody;
+            try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+                statusCode = response.getStatusLine().getStatusCode();
+                responseBody = EntityUtils.toString(response.getEntity());
+            }
             
             System.out.println("Response Status: " + statusCode);
             System.out.println("Response Body: " + responseBody);
@@ -149,123 +291,82 @@ public class ChargeGharConnector {
     }
     
     /**
-     * Send device data to Django API (full station sync)
-     * Called after device uploads data via HTTP or MQTT
-     * 
-     * @param rentboxSN Station serial number
-     * @param receiveUpload Parsed device data
-     * @param signal Signal strength
-     * @param ssid WiFi SSID
-     * @return true if sync successful
+     * UTF-8 JSON body of a station upload (type "full" or "delta")
      */
-    public boolean sendDeviceData(String rentboxSN, ReceiveUpload receiveUpload, 
-                                   String signal, String ssid) {
-        System.out.println("========================================");
-        System.out.println("SENDING DEVICE DATA TO CHARGEGHAR MAIN");
-        System.out.println("Station SN: " + rentboxSN);
-        
-        // Ensure authentication
-        if (!ensureAuthenticated()) {
-            System.err.println("❌ Failed to authenticate");
-            return false;
-        }
-        
-        // Build JSON payload
-        try {
-            ObjectNode payload = buildDeviceDataPayload(rentboxSN, receiveUpload, signal, ssid);
-            String jsonPayload = objectMapper.writeValueAsString(payload);
-            
-            System.out.println("Payload: " + jsonPayload);
+    public byte[] buildDeviceDataJson(String rentboxSN, ReceiveUpload receiveUpload,
+                                      String signal, String ssid) throws IOException {
+        return write(g -> writeDeviceData(g, rentboxSN, receiveUpload, signal, ssid));
+    }
+    
+    /**
+     * UTF-8 JSON body of a powerbank return event (type "returned")
+     */
+    public byte[] buildReturnEventJson(String rentboxSN, String powerbankSN,
+                                       int slotNumber, int batteryLevel) throws IOException {
+        return write(g -> writeReturnEvent(g, rentboxSN, powerbankSN, slotNumber, batteryLevel));
+    }
+    
+    /**
+     * UTF-8 JSON body of a station status change (type "status")
+     */
+    public byte[] buildDeviceStatusJson(String rentboxSN, String status) throws IOException {
+        return write(g -> {
+            g.writeStartObject();
+            g.writeStringField("type", "status");
+            g.writeNumberField("timestamp", SignChargeGharMain.getCurrentTimestamp());
             
-            // Send with retry logic
-            return sendWithRetry(stationDataEndpoint, jsonPayload);
+            g.writeObjectFieldStart("device");
+            g.writeStringField("serial_number", rentboxSN);
+            g.writeStringField("status", status);
+            g.writeEndObject();
             
-        } catch (Exception e) {
-            System.err.println("❌ Error building device data payload: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+            g.writeEndObject();
+        });
+    }
+    
+    private interface PayloadWriter {
+        void write(JsonGenerator g) throws IOException;
+    }
+    
+    /**
+     * Run a payload writer against this thread's buffer and return the bytes
+     */
+    private byte[] write(PayloadWriter writer) throws IOException {
+        ByteArrayOutputStream buffer = payloadBuffer.get();
+        buffer.reset();
+        try (JsonGenerator g = jsonFactory.createGenerator(buffer)) {
+            writer.write(g);
         }
+        return buffer.toByteArray();
     }
     
     /**
-     * Send powerbank return event to Django API
-     * Called when device detects powerbank insertion
+     * Post an already built JSON body to stationDataEndpoint once (no retries)
+     * Used by SyncOutbox, which does its own retrying.
      * 
-     * @param rentboxSN Station serial number
-     * @param powerbankSN PowerBank serial number
-     * @param slotNumber Slot number where powerbank was returned
-     * @param batteryLevel Battery level at return
-     * @return true if notification successful
+     * @return HTTP status code, or -1 if authentication failed
      */
-    public boolean sendReturnedData(String rentboxSN, String powerbankSN, 
-                                     int slotNumber, int batteryLevel) {
-        System.out.println("========================================");
-        System.out.println("SENDING RETURN EVENT TO CHARGEGHAR MAIN");
-        System.out.println("Station SN: " + rentboxSN);
-        System.out.println("PowerBank SN: " + powerbankSN);
-        System.out.println("Slot: " + slotNumber);
-        
-        // Ensure authentication
+    public int postStationData(byte[] jsonPayload) throws Exception {
         if (!ensureAuthenticated()) {
-            System.err.println("❌ Failed to authenticate");
-            return false;
-        }
-        
-        // Build JSON payload
-        try {
-            ObjectNode payload = buildReturnEventPayload(rentboxSN, powerbankSN, 
-                                                          slotNumber, batteryLevel);
-            String jsonPayload = objectMapper.writeValueAsString(payload);
-            
-            System.out.println("Payload: " + jsonPayload);
-            
-            // Send with retry logic
-            return sendWithRetry(stationDataEndpoint, jsonPayload);
-            
-        } catch (Exception e) {
-            System.err.println("❌ Error building return event payload: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+            return -1;
         }
+        return post(stationDataEndpoint, jsonPayload);
     }
-
+    
     /**
-     * Send device status to Django API
-     * Called when device connects/disconnects via webhook
+     * Post a JSON array of station events to the bulk endpoint once (no retries)
      * 
-     * @param rentboxSN Station serial number
-     * @param status "ONLINE" or "OFFLINE"
-     * @return true if notification successful
+     * @return HTTP status code, or -1 if authentication failed
      */
-    public boolean sendDeviceStatus(String rentboxSN, String status) {
-        // Ensure authentication
+    public int postBulkData(byte[] jsonArray) throws Exception {
         if (!ensureAuthenticated()) {
-            System.err.println("❌ Failed to authenticate");
-            return false;
-        }
-        
-        // Build simple status payload
-        try {
-            ObjectNode payload = objectMapper.createObjectNode();
-            payload.put("type", "status");
-            payload.put("timestamp", SignChargeGharMain.getCurrentTimestamp());
-            
-            ObjectNode device = objectMapper.createObjectNode();
-            device.put("serial_number", rentboxSN);
-            device.put("status", status);
-            payload.set("device", device);
-            
-            String jsonPayload = objectMapper.writeValueAsString(payload);
-            System.out.println("Status Payload: " + jsonPayload);
-            
-            // Send with retry logic
-            return sendWithRetry(stationDataEndpoint, jsonPayload);
-            
-        } catch (Exception e) {
-            System.err.println("❌ Error sending status: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+            return -1;
         }
+        return post(bulkEndpoint, jsonArray);
+    }
+    
+    public boolean hasBulkEndpoint() {
+        return bulkEndpoint != null && !bulkEndpoint.isEmpty();
     }
     
     /**
@@ -284,237 +385,259 @@ public class ChargeGharConnector {
     }
     
     /**
-     * Send HTTP POST request with retry logic
+     * Execute a signed POST, re-authenticating once on 401
+     * 
+     * @return HTTP status code
      */
-    private boolean sendWithRetry(String endpoint, String jsonPayload) {
-        int attempts = 0;
+    private int post(String endpoint, byte[] jsonPayload) throws Exception {
+        String url = baseUrl + endpoint;
+        HttpPost httpPost = new HttpPost(url);
         
-        while (attempts < maxRetries) {
-            attempts++;
-            System.out.println("Attempt " + attempts + "/" + maxRetries);
-            
-            try {
-                boolean success = sendHttpPost(endpoint, jsonPayload);
-                if (success) {
-                    System.out.println("✅ Data sent successfully");
-                    System.out.println("========================================");
-                    return true;
-                }
-                
-                // If 401, try to re-authenticate once
-                // This is handled in sendHttpPost by checking status code
-                
-            } catch (Exception e) {
-                System.err.println("Attempt " + attempts + " failed: " + e.getMessage());
-            }
-            
-            // Wait before retry (exponential backoff)
-            if (attempts < maxRetries) {
-                try {
-                    int waitTime = (int) Math.pow(2, attempts) * 1000;  // 2s, 4s, 8s
-                    System.out.println("Waiting " + (waitTime/1000) + "s before retry...");
-                    Thread.sleep(waitTime);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+        // Get current timestamp
+        long timestamp = SignChargeGharMain.getCurrentTimestamp();
+        
+        // Generate signature
+        String signature = signatureUtil.generateSignature(jsonPayload, timestamp);
+        
+        // Set headers
+        String accessToken = AuthTokenManager.getInstance().getAccessToken();
+        httpPost.setHeader("Content-Type", "application/json");
+        httpPost.setHeader("Authorization", "Bearer " + accessToken);
+        httpPost.setHeader("X-Signature", signature);
+        httpPost.setHeader("X-Timestamp", String.valueOf(timestamp));
+        
+        // Set body (the exact bytes that were signed)
+        httpPost.setEntity(new ByteArrayEntity(jsonPayload));
+        
+        System.out.println("POST URL: " + url);
+        System.out.println("Signature: " + signature);
+        System.out.println("Timestamp: " + timestamp);
+        
+        // Execute request (consuming the body returns the connection to the pool)
+        int statusCode;
+        String responseBody;
+        try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+            statusCode = response.getStatusLine().getStatusCode();
+            responseBody = EntityUtils.toString(response.getEntity());
         }
         
-        System.err.println("❌ Failed after " + maxRetries + " attempts");
-        System.out.println("========================================");
-        return false;
-    }
-    
-    /**
-     * Send HTTP POST request with signature
-     */
-    private boolean sendHttpPost(String endpoint, String jsonPayload) throws Exception {
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-            String url = baseUrl + endpoint;
-            HttpPost httpPost = new HttpPost(url);
-            httpPost.setConfig(requestConfig);
-            
-            // Get current timestamp
-            long timestamp = SignChargeGharMain.getCurrentTimestamp();
-            
-            // Generate signature
-            String signature = signatureUtil.generateSignature(jsonPayload, timestamp);
-            
-            // Set headers
-            String accessToken = AuthTokenManager.getInstance().getAccessToken();
-            httpPost.setHeader("Content-Type", "application/json");
-            httpPost.setHeader("Authorization", "Bearer " + accessToken);
-            httpPost.setHeader("X-Signature", signature);
-            httpPost.setHeader("X-Timestamp", String.valueOf(timestamp));
-            
-            // Set body
-            httpPost.setEntity(new StringEntity(jsonPayload, StandardCharsets.UTF_8));
-            
-            System.out.println("POST URL: " + url);
-            System.out.println("Signature: " + signature);
-            System.out.println("Timestamp: " + timestamp);
-            
-            // Execute request
-            HttpResponse response = httpClient.execute(httpPost);
-            int statusCode = response.getStatusLine().getStatusCode();
-            String responseBody = EntityUtils.toString(response.getEntity());
-            
-            System.out.println("Response Status: " + statusCode);
-            System.out.println("Response Body: " + responseBody);
-            
-            if (statusCode == 200) {
-                return true;
-            } else if (statusCode == 401) {
-                System.err.println("Token expired, re-authenticating...");
-                if (connectChargeGharMain()) {
-                    // Retry this request once with new token
-                    return sendHttpPost(endpoint, jsonPayload);
-                }
-                return false;
-            } else if (statusCode == 403) {
-                System.err.println("❌ Signature validation failed!");
-                return false;
-            } else {
-                System.err.println("❌ HTTP Error: " + statusCode);
-                return false;
+        System.out.println("Response Status: " + statusCode);
+        System.out.println("Response Body: " + responseBody);
+        
+        if (statusCode == 401) {
+            System.err.println("Token expired, re-authenticating...");
+            if (connectChargeGharMain()) {
+                // Retry this request once with new token
+                return post(endpoint, jsonPayload);
             }
         }
+        return statusCode;
     }
     
     /**
-     * Build JSON payload for device data sync
+     * Write JSON payload for device data sync (full snapshot or delta)
      */
-    private ObjectNode buildDeviceDataPayload(String rentboxSN, ReceiveUpload receiveUpload,
-                                               String signal, String ssid) {
-        ObjectNode root = objectMapper.createObjectNode();
-        root.put("type", "full");
-        root.put("timestamp", SignChargeGharMain.getCurrentTimestamp());
+    private void writeDeviceData(JsonGenerator g, String rentboxSN, ReceiveUpload receiveUpload,
+                                 String signal, String ssid) throws IOException {
+        List<Pinboard> pinboards = receiveUpload.getPinboards();
+        List<Powerbank> powerbanks = receiveUpload.getPowerbanks();
+        long now = System.currentTimeMillis();
+        
+        long pinboardsPrint = fingerprint(pinboards);
+        long[] slotPrints = new long[powerbanks.size()];
+        for (int i = 0; i < slotPrints.length; i++) {
+            slotPrints[i] = fingerprint(powerbanks.get(i));
+        }
+        
+        SyncedState previous = syncedStates.get(rentboxSN);
+        boolean full = !deltaSync || previous == null
+                || previous.slotPrints.length != slotPrints.length
+                || now - previous.fullAt >= fullSyncIntervalMs;
+        syncedStates.put(rentboxSN, new SyncedState(full ? now : previous.fullAt, pinboardsPrint, slotPrints));
+        (full ? fullSyncs : deltaSyncs).incrementAndGet();
+        
+        g.writeStartObject();
+        g.writeStringField("type", full ? "full" : "delta");
+        g.writeNumberField("timestamp", SignChargeGharMain.getCurrentTimestamp());
         
         // Device info
-        ObjectNode device = objectMapper.createObjectNode();
-        device.put("serial_number", rentboxSN);
-        device.put("imei", rentboxSN);
-        device.put("signal_strength", parseSignalStrength(signal));
-        device.put("wifi_ssid", ssid != null ? ssid : "");
-        device.put("last_heartbeat", getCurrentISOTimestamp());
-        device.put("status", "ONLINE");
+        g.writeObjectFieldStart("device");
+        g.writeStringField("serial_number", rentboxSN);
+        g.writeStringField("imei", rentboxSN);
+        g.writeStringField("signal_strength", parseSignalStrength(signal));
+        g.writeStringField("wifi_ssid", ssid != null ? ssid : "");
+        g.writeStringField("last_heartbeat", getCurrentISOTimestamp());
+        g.writeStringField("status", "ONLINE");
         
-        ObjectNode hardwareInfo = objectMapper.createObjectNode();
-        hardwareInfo.put("firmware_version", "2.1.5");
-        hardwareInfo.put("protocol_version", "0xA8");
-        device.set("hardware_info", hardwareInfo);
+        g.writeObjectFieldStart("hardware_info");
+        g.writeStringField("firmware_version", "2.1.5");
+        g.writeStringField("protocol_version", "0xA8");
+        g.writeEndObject();
         
-        root.set("device", device);
+        g.writeEndObject();
         
         // Station info
-        ObjectNode station = objectMapper.createObjectNode();
-        station.put("serial_number", rentboxSN);
-        station.put("total_slots", receiveUpload.getPowerbanks().size());
-        
-        // Pinboards array
-        ArrayNode pinboardsArray = objectMapper.createArrayNode();
-        for (Pinboard pinboard : receiveUpload.getPinboards()) {
-            ObjectNode pinboardNode = objectMapper.createObjectNode();
-            pinboardNode.put("index", pinboard.getIndex());
-            pinboardNode.put("io", pinboard.getIo());
-            pinboardNode.put("temperature", pinboard.getTemp());
-            pinboardNode.put("soft_version", pinboard.getSoftVersion());
-            pinboardNode.put("hard_version", pinboard.getHardVersion());
-            pinboardsArray.add(pinboardNode);
-        }
-        station.set("pinboards", pinboardsArray);
-        root.set("station", station);
-        
-        // Slots array
-        ArrayNode slotsArray = objectMapper.createArrayNode();
-        for (Powerbank pb : receiveUpload.getPowerbanks()) {
-            ObjectNode slotNode = objectMapper.createObjectNode();
-            slotNode.put("slot_number", pb.getIndex());
-            slotNode.put("status", mapPowerbankStatus(pb.getStatus()));
-            slotNode.put("battery_level", pb.getPower());
-            
-            if (pb.getSnAsInt() > 0) {
-                slotNode.put("power_bank_serial", pb.getSnAsString());
+        g.writeObjectFieldStart("station");
+        g.writeStringField("serial_number", rentboxSN);
+        g.writeNumberField("total_slots", powerbanks.size());
+        
+        // Pinboards array (delta: only when a board changed)
+        if (full || previous.pinboardsPrint != pinboardsPrint) {
+            g.writeArrayFieldStart("pinboards");
+            for (Pinboard pinboard : pinboards) {
+                g.writeStartObject();
+                g.writeNumberField("index", pinboard.getIndex());
+                g.writeNumberField("io", pinboard.getIo());
+                g.writeNumberField("temperature", pinboard.getTemp());
+                g.writeNumberField("soft_version", pinboard.getSoftVersion());
+                g.writeNumberField("hard_version", pinboard.getHardVersion());
+                g.writeEndObject();
             }
-            
-            ObjectNode slotMetadata = objectMapper.createObjectNode();
-            slotMetadata.put("micro_switch", pb.getMicroSwitch());
-            slotMetadata.put("solenoid_valve", pb.getSolenoidValveSwitch());
-            slotMetadata.put("lock_count", pb.getLockCount());
-            slotMetadata.put("last_updated", getCurrentISOTimestamp());
-            
-            if (pb.getStatus() > 0x01) {
-                slotMetadata.put("error_code", "0x0" + Integer.toHexString(pb.getStatus()));
-                slotMetadata.put("error_message", pb.getMessage());
+            g.writeEndArray();
+        }
+        g.writeEndObject();
+        
+        // Slots array (delta: only changed slots)
+        g.writeArrayFieldStart("slots");
+        for (int i = 0; i < powerbanks.size(); i++) {
+            if (full || previous.slotPrints[i] != slotPrints[i]) {
+                writeSlot(g, powerbanks.get(i));
             }
-            
-            slotNode.set("slot_metadata", slotMetadata);
-            slotsArray.add(slotNode);
         }
-        root.set("slots", slotsArray);
+        g.writeEndArray();
         
         // PowerBanks array (only occupied slots)
-        ArrayNode powerbanksArray = objectMapper.createArrayNode();
-        for (Powerbank pb : receiveUpload.getPowerbanks()) {
-            if (pb.getSnAsInt() > 0) {  // Has powerbank
-                ObjectNode pbNode = objectMapper.createObjectNode();
-                pbNode.put("serial_number", pb.getSnAsString());
-                pbNode.put("status", mapPowerbankStatusForPowerBank(pb.getStatus()));
-                pbNode.put("battery_level", pb.getPower());
-                pbNode.put("current_slot", pb.getIndex());
-                
-                ObjectNode pbHardwareInfo = objectMapper.createObjectNode();
-                pbHardwareInfo.put("temperature", pb.getTemp());
-                pbHardwareInfo.put("voltage", pb.getVoltage());
-                pbHardwareInfo.put("current", pb.getCurrent());
-                pbHardwareInfo.put("soft_version", pb.getSoftVersion());
-                pbHardwareInfo.put("hard_version", pb.getHardVersion());
-                pbHardwareInfo.put("micro_switch", pb.getMicroSwitch());
-                pbHardwareInfo.put("solenoid_valve", pb.getSolenoidValveSwitch());
-                pbHardwareInfo.put("area_code", pb.getArea());
-                
-                pbNode.set("hardware_info", pbHardwareInfo);
-                powerbanksArray.add(pbNode);
+        g.writeArrayFieldStart("power_banks");
+        for (int i = 0; i < powerbanks.size(); i++) {
+            Powerbank pb = powerbanks.get(i);
+            if ((full || previous.slotPrints[i] != slotPrints[i]) && pb.getSnAsInt() != 0) {  // Has powerbank
+                writePowerbank(g, pb);
             }
         }
-        root.set("power_banks", powerbanksArray);
+        g.writeEndArray();
+        
+        g.writeEndObject();
+    }
+    
+    private void writeSlot(JsonGenerator g, Powerbank pb) throws IOException {
+        g.writeStartObject();
+        g.writeNumberField("slot_number", pb.getIndex());
+        g.writeStringField("status", mapPowerbankStatus(pb.getStatus()));
+        writeNumberField(g, "battery_level", pb.getPower());
+        
+        if (pb.getSnAsInt() != 0) {
+            g.writeStringField("power_bank_serial", pb.getSnAsString());
+        }
+        
+        g.writeObjectFieldStart("slot_metadata");
+        g.writeStringField("micro_switch", pb.getMicroSwitch());
+        g.writeStringField("solenoid_valve", pb.getSolenoidValveSwitch());
+        g.writeNumberField("lock_count", pb.getLockCount());
+        g.writeStringField("last_updated", getCurrentISOTimestamp());
+        
+        if (pb.getStatus() > 0x01) {
+            g.writeStringField("error_code", "0x0" + Integer.toHexString(pb.getStatus()));
+            g.writeStringField("error_message", pb.getMessage());
+        }
+        g.writeEndObject();
+        
+        g.writeEndObject();
+    }
+    
+    private void writePowerbank(JsonGenerator g, Powerbank pb) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("serial_number", pb.getSnAsString());
+        g.writeStringField("status", mapPowerbankStatusForPowerBank(pb.getStatus()));
+        writeNumberField(g, "battery_level", pb.getPower());
+        g.writeNumberField("current_slot", pb.getIndex());
+        
+        g.writeObjectFieldStart("hardware_info");
+        g.writeNumberField("temperature", pb.getTemp());
+        g.writeNumberField("voltage", pb.getVoltage());
+        g.writeNumberField("current", pb.getCurrent());
+        g.writeNumberField("soft_version", pb.getSoftVersion());
+        g.writeNumberField("hard_version", pb.getHardVersion());
+        g.writeStringField("micro_switch", pb.getMicroSwitch());
+        g.writeStringField("solenoid_valve", pb.getSolenoidValveSwitch());
+        g.writeNumberField("area_code", pb.getArea());
+        g.writeEndObject();
         
-        return root;
+        g.writeEndObject();
+    }
+    
+    private static void writeNumberField(JsonGenerator g, String name, Integer value) throws IOException {
+        if (value == null) {
+            g.writeNullField(name);
+        } else {
+            g.writeNumberField(name, value);
+        }
+    }
+    
+    /**
+     * Fingerprint of a slot's state
+     * Temperature, voltage and current drift on every report and are left
+     * out; their latest values go out with the slot's next change or the
+     * next full snapshot.
+     */
+    private static long fingerprint(Powerbank pb) {
+        long h = pb.getIndex();
+        h = h * 31 + pb.getStatus();
+        h = h * 31 + pb.getPower();
+        h = h * 31 + pb.getSnAsInt();
+        h = h * 31 + pb.getLockCount();
+        h = h * 31 + pb.getSoftVersion();
+        h = h * 31 + pb.getHardVersion();  // includes the micro switch / solenoid valve bits
+        h = h * 31 + pb.getArea();
+        return h;
     }
     
     /**
-     * Build JSON payload for return event
+     * Fingerprint of the pinboards (board temperature left out, as above)
      */
-    private ObjectNode buildReturnEventPayload(String rentboxSN, String powerbankSN,
-                                                int slotNumber, int batteryLevel) {
-        ObjectNode root = objectMapper.createObjectNode();
-        root.put("type", "returned");
-        root.put("timestamp", SignChargeGharMain.getCurrentTimestamp());
+    private static long fingerprint(List<Pinboard> pinboards) {
+        long h = pinboards.size();
+        for (Pinboard pinboard : pinboards) {
+            h = h * 31 + pinboard.getIndex();
+            h = h * 31 + pinboard.getIo();
+            h = h * 31 + pinboard.getSoftVersion();
+            h = h * 31 + pinboard.getHardVersion();
+        }
+        return h;
+    }
+    
+    /**
+     * Write JSON payload for return event
+     */
+    private void writeReturnEvent(JsonGenerator g, String rentboxSN, String powerbankSN,
+                                  int slotNumber, int batteryLevel) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("type", "returned");
+        g.writeNumberField("timestamp", SignChargeGharMain.getCurrentTimestamp());
         
         // Device info
-        ObjectNode device = objectMapper.createObjectNode();
-        device.put("serial_number", rentboxSN);
-        device.put("last_heartbeat", getCurrentISOTimestamp());
-        root.set("device", device);
+        g.writeObjectFieldStart("device");
+        g.writeStringField("serial_number", rentboxSN);
+        g.writeStringField("last_heartbeat", getCurrentISOTimestamp());
+        g.writeEndObject();
         
         // Return event
-        ObjectNode returnEvent = objectMapper.createObjectNode();
-        returnEvent.put("power_bank_serial", powerbankSN);
-        returnEvent.put("slot_number", slotNumber);
-        returnEvent.put("battery_level", batteryLevel);
-        returnEvent.put("returned_at", getCurrentISOTimestamp());
-        returnEvent.put("condition", "NORMAL");
+        g.writeObjectFieldStart("return_event");
+        g.writeStringField("power_bank_serial", powerbankSN);
+        g.writeNumberField("slot_number", slotNumber);
+        g.writeNumberField("battery_level", batteryLevel);
+        g.writeStringField("returned_at", getCurrentISOTimestamp());
+        g.writeStringField("condition", "NORMAL");
         
         // Hardware info at return (would need actual values from device)
-        ObjectNode hardwareInfo = objectMapper.createObjectNode();
-        hardwareInfo.put("temperature", 28);
-        hardwareInfo.put("voltage", 4800);
-        hardwareInfo.put("current", 0);
-        returnEvent.set("hardware_info", hardwareInfo);
+        g.writeObjectFieldStart("hardware_info");
+        g.writeNumberField("temperature", 28);
+        g.writeNumberField("voltage", 4800);
+        g.writeNumberField("current", 0);
+        g.writeEndObject();
         
-        root.set("return_event", returnEvent);
+        g.writeEndObject();
         
-        return root;
+        g.writeEndObject();
     }
     
     /**
@@ -578,4 +701,16 @@ public class ChargeGharConnector {
                 .atOffset(ZoneOffset.UTC)
                 .format(DateTimeFormatter.ISO_INSTANT);
     }
+    
+    private static class SyncedState {
+        final long fullAt;
+        final long pinboardsPrint;
+        final long[] slotPrints;
+        
+        SyncedState(long fullAt, long pinboardsPrint, long[] slotPrints) {
+            this.fullAt = fullAt;
+            this.pinboardsPrint = pinboardsPrint;
+            this.slotPrints = slotPrints;
+        }
+    }
 }
@@ -0,0 +1,703 @@
+package com.demo.connector;
+
+import com.demo.message.ReceiveUpload;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Durable outbox for events sent to ChargeGhar Main
+ *
+ * Upload, return and status events are appended to a local log and the
+ * caller (usually a device request thread) returns at once. A single
+ * dispatcher thread posts them to stationDataEndpoint in order, backing off
+ * while Django is unreachable, so a slow or down API never holds up devices
+ * and no event is lost across restarts.
+ *
+ * The log is a directory of segment files (segment-{n}.log) holding
+ * [length][crc32][json] records. The dispatcher's position is kept in a
+ * small cursor file that is replaced atomically after every delivered
+ * record; fully delivered segments are deleted. Delivery is at-least-once:
+ * a crash between the POST and the cursor update sends that record again.
+ *
+ * Records Django rejects with a 4xx (other than 401/408/429) are logged and
+ * skipped, since retrying them cannot succeed. A skipped, unwritable or
+ * corrupt station upload makes the connector send that station's (or, for
+ * corrupt records, every station's) next upload as a full snapshot.
+ *
+ * When a bulk endpoint is configured, the dispatcher collects up to
+ * batchSize queued records (waiting at most lingerMs for more) and posts
+ * them as one signed JSON array. If Django answers the bulk endpoint with
+ * 404/405/501 the batch is sent record by record instead, and bulk is
+ * tried again after bulkRetryMs. A batch rejected as a whole (e.g. 400) is
+ * also resent record by record, so one bad event cannot block the others.
+ */
+@Component
+public class SyncOutbox {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_FILE = "cursor";
+
+    /**
+     * Record header: payload length + CRC32 of the payload
+     */
+    private static final int HEADER_LENGTH = 8;
+
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private static final long INITIAL_BACKOFF_MS = 1000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Autowired
+    private ChargeGharConnector chargeGharConnector;
+
+    @Value("${chargeghar.outbox.dir:${user.home}/.chargeghar/outbox}")
+    private String dir;
+
+    @Value("${chargeghar.outbox.segmentBytes:4194304}")
+    private long segmentBytes;
+
+    @Value("${chargeghar.outbox.fsync:true}")
+    private boolean fsync;
+
+    @Value("${chargeghar.outbox.maxBackoffMs:60000}")
+    private long maxBackoffMs;
+
+    @Value("${chargeghar.outbox.batchSize:50}")
+    private int batchSize;
+
+    @Value("${chargeghar.outbox.lingerMs:200}")
+    private long lingerMs;
+
+    @Value("${chargeghar.outbox.bulkRetryMs:600000}")
+    private long bulkRetryMs;
+
+    /**
+     * Bulk endpoint disabled until this time (after a 404/405/501)
+     */
+    private volatile long bulkUnavailableUntil = 0;
+
+    private Path directory;
+
+    // Writer state, guarded by this
+    private FileChannel writer;
+    private long writeSegment;
+    private long writeOffset;
+
+    // Reader state, only touched by the dispatcher thread
+    private FileChannel reader;
+    private volatile long readSegment;
+    private volatile long readOffset;
+
+    private final Object signal = new Object();
+    private Thread dispatcher;
+    private volatile boolean running = false;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong corruptSkipped = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bulkRequests = new AtomicLong();
+    private final AtomicLong requestMillis = new AtomicLong();
+
+    @PostConstruct
+    public void init() throws IOException {
+        segmentBytes = Math.max(64 * 1024, segmentBytes);
+        batchSize = Math.max(1, batchSize);
+        directory = Paths.get(dir);
+        Files.createDirectories(directory);
+
+        List<Long> segments = listSegments();
+        long[] cursor = loadCursor();
+        if (cursor != null) {
+            readSegment = cursor[0];
+            readOffset = cursor[1];
+        } else {
+            readSegment = segments.isEmpty() ? 0 : segments.get(0);
+            readOffset = 0;
+        }
+
+        // Segments before the cursor were delivered before a crash/restart
+        for (long segment : segments) {
+            if (segment < readSegment) {
+                Files.deleteIfExists(segmentPath(segment));
+            }
+        }
+
+        writeSegment = Math.max(readSegment, segments.isEmpty() ? 0 : segments.get(segments.size() - 1));
+        writer = FileChannel.open(segmentPath(writeSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.READ);
+        writeOffset = validLength(writer);
+        if (writeOffset < writer.size()) {
+            // Torn record from a crash mid-append
+            System.err.println("⚠️ Outbox: truncating " + (writer.size() - writeOffset) + " incomplete byte(s) in "
+                + segmentPath(writeSegment));
+            writer.truncate(writeOffset);
+        }
+        writer.position(writeOffset);
+
+        running = true;
+        dispatcher = new Thread(this::dispatch, "chargeghar-outbox");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        System.out.println("✅ ChargeGhar outbox ready: " + directory.toAbsolutePath() + " (backlog "
+            + getBacklogBytes() + " bytes)");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            try {
+                dispatcher.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeQuietly(reader);
+        synchronized (this) {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Queue a full station sync
+     */
+    public boolean enqueueDeviceData(String rentboxSN, ReceiveUpload receiveUpload, String signal, String ssid) {
+        boolean queued = false;
+        try {
+            queued = append("upload " + rentboxSN, chargeGharConnector.buildDeviceDataJson(rentboxSN, receiveUpload, signal, ssid));
+        } catch (IOException e) {
+            System.err.println("❌ Outbox: could not build upload payload for " + rentboxSN + ": " + e.getMessage());
+        }
+        if (!queued) {
+            chargeGharConnector.requestFullSync(rentboxSN);
+        }
+        return queued;
+    }
+
+    /**
+     * Queue a powerbank return event
+     */
+    public boolean enqueueReturnEvent(String rentboxSN, String powerbankSN, int slotNumber, int batteryLevel) {
+        try {
+            return append("return " + rentboxSN, chargeGharConnector.buildReturnEventJson(rentboxSN, powerbankSN, slotNumber, batteryLevel));
+        } catch (IOException e) {
+            System.err.println("❌ Outbox: could not build return payload for " + rentboxSN + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Queue a station status change ("ONLINE" / "OFFLINE")
+     */
+    public boolean enqueueDeviceStatus(String rentboxSN, String status) {
+        try {
+            return append(status + " " + rentboxSN, chargeGharConnector.buildDeviceStatusJson(rentboxSN, status));
+        } catch (IOException e) {
+            System.err.println("❌ Outbox: could not build status payload for " + rentboxSN + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Append one JSON body to the log and wake the dispatcher
+     *
+     * @param description Short label for the log output
+     * @param data UTF-8 JSON body, stored and later sent byte for byte
+     * @return false if the record could not be written
+     */
+    public boolean append(String description, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + data.length);
+        buffer.putInt(data.length).putInt(crc(data)).put(data);
+        buffer.flip();
+
+        synchronized (this) {
+            try {
+                if (writeOffset > 0 && writeOffset + buffer.remaining() > segmentBytes) {
+                    roll();
+                }
+                while (buffer.hasRemaining()) {
+                    writer.write(buffer);
+                }
+                if (fsync) {
+                    writer.force(false);
+                }
+                writeOffset += HEADER_LENGTH + data.length;
+            } catch (IOException e) {
+                System.err.println("❌ Outbox: failed to write " + description + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        appended.incrementAndGet();
+        System.out.println("📥 Outbox: queued " + description);
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        return true;
+    }
+
+    private void roll() throws IOException {
+        writer.close();
+        writeSegment++;
+        writeOffset = 0;
+        writer = FileChannel.open(segmentPath(writeSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.READ);
+    }
+
+    private void dispatch() {
+        while (running) {
+            List<byte[]> batch;
+            try {
+                batch = readBatch();
+                if (!batch.isEmpty() && batch.size() < batchSize && lingerMs > 0 && bulkAvailable()) {
+                    // Give a burst a moment to accumulate into one request
+                    long deadline = System.currentTimeMillis() + lingerMs;
+                    long remaining;
+                    while (batch.size() < batchSize && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        synchronized (signal) {
+                            signal.wait(remaining);
+                        }
+                        batch = readBatch();
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                if (!running) {
+                    break;
+                }
+                System.err.println("❌ Outbox: read failed: " + e.getMessage());
+                closeQuietly(reader);
+                reader = null;
+                sleep(INITIAL_BACKOFF_MS);
+                continue;
+            }
+
+            if (batch.isEmpty()) {
+                synchronized (signal) {
+                    try {
+                        signal.wait(1000);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                continue;
+            }
+
+            if (!deliver(batch)) {
+                // Shutting down: leave the remaining records for the next start
+                break;
+            }
+        }
+    }
+
+    /**
+     * Deliver a batch through the bulk endpoint, or record by record
+     *
+     * @return false if the dispatcher was stopped first
+     */
+    private boolean deliver(List<byte[]> batch) {
+        long backoff = INITIAL_BACKOFF_MS;
+        while (running && batch.size() > 1 && bulkAvailable()) {
+            int statusCode = post(bulkPayload(batch), true);
+            if (statusCode >= 200 && statusCode < 300) {
+                delivered.addAndGet(batch.size());
+                for (byte[] record : batch) {
+                    readOffset += HEADER_LENGTH + record.length;
+                }
+                saveCursor();
+                return true;
+            }
+            if (statusCode == 404 || statusCode == 405 || statusCode == 501) {
+                bulkUnavailableUntil = System.currentTimeMillis() + bulkRetryMs;
+                System.err.println("⚠️ Outbox: bulk endpoint unavailable (HTTP " + statusCode
+                    + "), sending events one by one for the next " + bulkRetryMs + "ms");
+                break;
+            }
+            if (statusCode >= 400 && statusCode < 500 && statusCode != 401 && statusCode != 408 && statusCode != 429) {
+                System.err.println("⚠️ Outbox: bulk batch rejected (HTTP " + statusCode + "), resending one by one");
+                break;
+            }
+
+            failedAttempts.incrementAndGet();
+            System.err.println("⚠️ Outbox: bulk delivery failed (" + statusCode + "), retrying in " + backoff + "ms");
+            if (!sleep(backoff)) {
+                return false;
+            }
+            backoff = Math.min(backoff * 2, Math.max(INITIAL_BACKOFF_MS, maxBackoffMs));
+        }
+
+        for (byte[] record : batch) {
+            if (!deliver(record)) {
+                return false;
+            }
+            readOffset += HEADER_LENGTH + record.length;
+            saveCursor();
+        }
+        return true;
+    }
+
+    private boolean bulkAvailable() {
+        return chargeGharConnector.hasBulkEndpoint() && batchSize > 1
+            && System.currentTimeMillis() >= bulkUnavailableUntil;
+    }
+
+    /**
+     * JSON array of the batch's records (each record is already a JSON object)
+     */
+    private static byte[] bulkPayload(List<byte[]> batch) {
+        int length = batch.size() + 1;
+        for (byte[] record : batch) {
+            length += record.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.put((byte) '[');
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                payload.put((byte) ',');
+            }
+            payload.put(batch.get(i));
+        }
+        payload.put((byte) ']');
+        return payload.array();
+    }
+
+    /**
+     * One timed POST; exceptions count as status -1
+     */
+    private int post(byte[] jsonPayload, boolean bulk) {
+        long start = System.currentTimeMillis();
+        try {
+            return bulk ? chargeGharConnector.postBulkData(jsonPayload) : chargeGharConnector.postStationData(jsonPayload);
+        } catch (Exception e) {
+            System.err.println("⚠️ Outbox: POST failed: " + e.getMessage());
+            return -1;
+        } finally {
+            requests.incrementAndGet();
+            if (bulk) {
+                bulkRequests.incrementAndGet();
+            }
+            requestMillis.addAndGet(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * A station upload that will never reach Django: make the station's next upload a full snapshot
+     */
+    private void resyncStation(byte[] jsonPayload) {
+        try {
+            JsonNode root = objectMapper.readTree(jsonPayload);
+            String type = root.path("type").asText();
+            String rentboxSN = root.path("device").path("serial_number").asText(null);
+            if (rentboxSN != null && ("full".equals(type) || "delta".equals(type))) {
+                chargeGharConnector.requestFullSync(rentboxSN);
+            }
+        } catch (IOException e) {
+            chargeGharConnector.requestFullSyncAll();
+        }
+    }
+
+    /**
+     * Post one record until Django accepts or rejects it
+     *
+     * @return false if the dispatcher was stopped first
+     */
+    private boolean deliver(byte[] jsonPayload) {
+        long backoff = INITIAL_BACKOFF_MS;
+        while (running) {
+            int statusCode = post(jsonPayload, false);
+
+            if (statusCode >= 200 && statusCode < 300) {
+                delivered.incrementAndGet();
+                return true;
+            }
+            if (statusCode >= 400 && statusCode < 500 && statusCode != 401 && statusCode != 408 && statusCode != 429) {
+                rejected.incrementAndGet();
+                System.err.println("❌ Outbox: Django rejected event (HTTP " + statusCode + "), skipping: "
+                    + new String(jsonPayload, StandardCharsets.UTF_8));
+                resyncStation(jsonPayload);
+                return true;
+            }
+
+            failedAttempts.incrementAndGet();
+            System.err.println("⚠️ Outbox: delivery failed (" + statusCode + "), retrying in " + backoff + "ms");
+            if (!sleep(backoff)) {
+                return false;
+            }
+            backoff = Math.min(backoff * 2, Math.max(INITIAL_BACKOFF_MS, maxBackoffMs));
+        }
+        return false;
+    }
+
+    /**
+     * Up to batchSize undelivered records from the current segment, oldest first
+     */
+    private List<byte[]> readBatch() throws IOException {
+        List<byte[]> batch = new ArrayList<>();
+        byte[] record = readNext();
+        long offset = readOffset;
+        while (record != null) {
+            batch.add(record);
+            offset += HEADER_LENGTH + record.length;
+            record = batch.size() < batchSize ? recordAt(offset) : null;
+        }
+        return batch;
+    }
+
+    /**
+     * Complete, valid record at an offset of the current segment, or null
+     */
+    private byte[] recordAt(long offset) throws IOException {
+        long limit;
+        synchronized (this) {
+            limit = readSegment == writeSegment ? writeOffset : reader.size();
+        }
+        if (offset + HEADER_LENGTH > limit) {
+            return null;
+        }
+        ByteBuffer header = readFully(reader, offset, HEADER_LENGTH);
+        int length = header.getInt();
+        int crc = header.getInt();
+        if (length < 0 || length > MAX_RECORD_LENGTH || offset + HEADER_LENGTH + length > limit) {
+            return null;
+        }
+        byte[] data = readFully(reader, offset + HEADER_LENGTH, length).array();
+        // A bad record is dealt with by readNext once it reaches the head
+        return crc(data) == crc ? data : null;
+    }
+
+    /**
+     * Next undelivered record, or null if the dispatcher has caught up
+     */
+    private byte[] readNext() throws IOException {
+        while (true) {
+            long activeSegment;
+            long activeLimit;
+            synchronized (this) {
+                activeSegment = writeSegment;
+                activeLimit = writeOffset;
+            }
+
+            if (reader == null) {
+                Path path = segmentPath(readSegment);
+                if (!Files.exists(path)) {
+                    if (readSegment < activeSegment) {
+                        nextSegment();
+                        continue;
+                    }
+                    return null;
+                }
+                reader = FileChannel.open(path, StandardOpenOption.READ);
+            }
+
+            // Only read up to what the writer has completed in the active segment
+            long limit = readSegment == activeSegment ? activeLimit : reader.size();
+            if (readOffset + HEADER_LENGTH <= limit) {
+                ByteBuffer header = readFully(reader, readOffset, HEADER_LENGTH);
+                int length = header.getInt();
+                int crc = header.getInt();
+                if (length >= 0 && length <= MAX_RECORD_LENGTH && readOffset + HEADER_LENGTH + length <= limit) {
+                    byte[] data = readFully(reader, readOffset + HEADER_LENGTH, length).array();
+                    if (crc(data) == crc) {
+                        return data;
+                    }
+                }
+                // Corrupt record: nothing after it in this segment can be framed reliably
+                corruptSkipped.incrementAndGet();
+                System.err.println("❌ Outbox: corrupt record in " + segmentPath(readSegment) + " at " + readOffset
+                    + ", skipping " + (limit - readOffset) + " byte(s)");
+                readOffset = limit;
+                saveCursor();
+                // Skipped uploads cannot be identified, so every station resyncs
+                chargeGharConnector.requestFullSyncAll();
+            }
+
+            if (readSegment < activeSegment) {
+                // Sealed segment fully delivered
+                nextSegment();
+                continue;
+            }
+            return null;
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        closeQuietly(reader);
+        reader = null;
+        long done = readSegment;
+        readSegment++;
+        readOffset = 0;
+        saveCursor();
+        Files.deleteIfExists(segmentPath(done));
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of outbox segment");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Length of the prefix of a segment made of complete, valid records
+     */
+    private static long validLength(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long offset = 0;
+        while (offset + HEADER_LENGTH <= size) {
+            ByteBuffer header = readFully(channel, offset, HEADER_LENGTH);
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length < 0 || length > MAX_RECORD_LENGTH || offset + HEADER_LENGTH + length > size) {
+                break;
+            }
+            if (crc(readFully(channel, offset + HEADER_LENGTH, length).array()) != crc) {
+                break;
+            }
+            offset += HEADER_LENGTH + length;
+        }
+        return offset;
+    }
+
+    private void saveCursor() {
+        Path tmp = directory.resolve(CURSOR_FILE + ".tmp");
+        try {
+            Files.write(tmp, (readSegment + " " + readOffset).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, directory.resolve(CURSOR_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("❌ Outbox: failed to save cursor: " + e.getMessage());
+        }
+    }
+
+    private long[] loadCursor() {
+        Path path = directory.resolve(CURSOR_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim().split(" ");
+            return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        } catch (Exception e) {
+            System.err.println("⚠️ Outbox: unreadable cursor, starting from the oldest segment: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Bytes appended but not yet delivered
+     */
+    public long getBacklogBytes() {
+        long backlog = 0;
+        try {
+            for (long segment : listSegments()) {
+                if (segment >= readSegment) {
+                    backlog += Files.size(segmentPath(segment));
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return Math.max(0, backlog - readOffset);
+    }
+
+    /**
+     * Snapshot of the outbox counters (for monitoring)
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", running);
+        stats.put("backlogBytes", getBacklogBytes());
+        stats.put("appended", appended.get());
+        stats.put("delivered", delivered.get());
+        stats.put("rejected", rejected.get());
+        stats.put("failedAttempts", failedAttempts.get());
+        stats.put("corruptSkipped", corruptSkipped.get());
+        stats.put("bulkAvailable", bulkAvailable());
+        stats.put("requests", requests.get());
+        stats.put("bulkRequests", bulkRequests.get());
+        long count = requests.get();
+        stats.put("avgRequestMs", count == 0 ? 0 : requestMillis.get() / count);
+        return stats;
+    }
+}
@@ -13,9 +13,11 @@ import com.demo.helper.ControllerHelper;
 import com.demo.message.ReceiveUpload;
 import com.demo.message.ReceiveWifi;
 import com.demo.model.Device;
+import com.demo.mqtt.DeviceActivityTracker;
 import com.demo.mqtt.DeviceCommandUtils;
 import com.demo.mqtt.MqttPublisher;
 import com.demo.mqtt.MqttSubscriber;
+import com.demo.mqtt.StationSnapshotStore;
 import com.demo.service.DeviceService;
 import com.demo.tools.ByteUtils;
 import com.demo.tools.HttpServletUtils;
@@ -31,6 +33,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -72,6 +75,12 @@ public class ApiController {
     @Autowired
     TransactionLogger transactionLogger;
 
+    @Autowired
+    StationSnapshotStore stationSnapshotStore;
+
+    @Autowired
+    DeviceActivityTracker deviceActivityTracker;
+
     // ========================================================================================
     // API ENDPOINTS
     // ========================================================================================
@@ -126,6 +135,30 @@ public class ApiController {
         return result;
     }
 
+    /**
+     * WiFi scan without holding a servlet thread while the device replies
+     * GET /api/device/wifi/scan/async?deviceName=...
+     */
+    @RequestMapping("/api/device/wifi/scan/async")
+    public DeferredResult<HttpResult> wifiScanAsync(@RequestParam String deviceName) {
+        HttpResult timeoutResult = new HttpResult();
+        timeoutResult.setCode(500);
+        timeoutResult.setMsg("Request Time Out");
+
+        DeferredResult<HttpResult> deferredResult = new DeferredResult<>(20000L, timeoutResult);
+        deviceCommandUtils.getWifiListAsync(deviceName).whenComplete((wifiList, ex) -> {
+            HttpResult result = new HttpResult();
+            if (ex != null) {
+                result.setCode(500);
+                result.setMsg(DeviceCommandUtils.unwrap(ex).getMessage());
+            } else {
+                result.setData(wifiList.getNames());
+            }
+            deferredResult.setResult(result);
+        });
+        return deferredResult;
+    }
+
     @RequestMapping("/api/device/wifi/connect")
     public HttpResult wifiConnect(@RequestParam String deviceName, 
                                   @RequestParam String ssid, 
@@ -324,19 +357,10 @@ public class ApiController {
 
             // Parse the upload data
             ReceiveUpload receiveUpload = new ReceiveUpload(bytes);
+            stationSnapshotStore.update(rentboxSN, receiveUpload);
 
-            // Update device activity and heartbeat timestamps in Redis
-            long now = System.currentTimeMillis();
-
-            // Update device activity (checked by getDeviceStatus)
-            String activityKey = "device_activity:" + rentboxSN;
-            BoundValueOperations activityOps = redisTemplate.boundValueOps(activityKey);
-            activityOps.set(now, 25, TimeUnit.MINUTES);
-
-            // Update device heartbeat (checked by getDeviceStatus)
-            String heartbeatKey = "device_heartbeat:" + rentboxSN;
-            BoundValueOperations heartbeatOps = redisTemplate.boundValueOps(heartbeatKey);
-            heartbeatOps.set(now, 5, TimeUnit.MINUTES);
+            // Update device activity and heartbeat timestamps (flushed to Redis in batches)
+            deviceActivityTracker.touch(rentboxSN, System.currentTimeMillis());
 
             // Log parsed data
             controllerHelper.logDeviceUploadData(rentboxSN, signal, sign, io, ssid, bytes.length, data, receiveUpload);
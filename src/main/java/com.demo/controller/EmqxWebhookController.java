@@ -1,23 +1,24 @@
 package com.demo.controller;
 
+import com.demo.mqtt.DeviceActivityTracker;
+import com.demo.mqtt.OfflineDetector;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.BoundValueOperations;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.concurrent.TimeUnit;
-
 @RestController
 @RequestMapping("/api/emqx")
 public class EmqxWebhookController {
 
     @Autowired
-    private RedisTemplate redisTemplate;
+    private com.demo.connector.ChargeGharConnector chargeGharConnector;
 
     @Autowired
-    private com.demo.connector.ChargeGharConnector chargeGharConnector;
+    private DeviceActivityTracker deviceActivityTracker;
+
+    @Autowired
+    private OfflineDetector offlineDetector;
 
     private ObjectMapper objectMapper = new ObjectMapper();
 
@@ -64,20 +65,21 @@ public class EmqxWebhookController {
             if ("client.connected".equals(action)) {
                 System.out.println("🟢 Device CONNECTED: " + deviceId);
                 updateDeviceStatus(deviceId, now);
-                System.out.println("✅ Redis updated for device: " + deviceId);
+                System.out.println("✅ Activity updated for device: " + deviceId);
                 
-                // Send online status to Django
-                chargeGharConnector.sendDeviceStatus(deviceId, "ONLINE");
-                System.out.println("✅ Status sent to Django for device: " + deviceId);
+                // Send online status to Django (once across nodes and the offline detector)
+                offlineDetector.reportConnected(deviceId);
+
+                // Resend the whole station on its next upload
+                chargeGharConnector.requestFullSync(deviceId);
             }
             else if ("client.disconnected".equals(action)) {
                 System.out.println("🔴 Device DISCONNECTED: " + deviceId);
                 deleteDeviceStatus(deviceId);
                 System.out.println("✅ Redis keys deleted for device: " + deviceId);
                 
-                // Send offline status to Django
-                chargeGharConnector.sendDeviceStatus(deviceId, "OFFLINE");
-                System.out.println("✅ Status sent to Django for device: " + deviceId);
+                // Send offline status to Django (once across nodes and the offline detector)
+                offlineDetector.reportDisconnected(deviceId);
             }
             else {
                 System.out.println("⚠️  Unknown action: " + action);
@@ -93,19 +95,10 @@ public class EmqxWebhookController {
     }
     
     private void updateDeviceStatus(String deviceName, long timestamp) {
-        String heartbeatKey = "device_heartbeat:" + deviceName;
-        BoundValueOperations heartbeatOps = redisTemplate.boundValueOps(heartbeatKey);
-        heartbeatOps.set(timestamp, 5, TimeUnit.MINUTES);
-        
-        String activityKey = "device_activity:" + deviceName;
-        BoundValueOperations activityOps = redisTemplate.boundValueOps(activityKey);
-        activityOps.set(timestamp, 25, TimeUnit.MINUTES);
+        deviceActivityTracker.touch(deviceName, timestamp);
     }
     
     private void deleteDeviceStatus(String deviceName) {
-        String heartbeatKey = "device_heartbeat:" + deviceName;
-        String activityKey = "device_activity:" + deviceName;
-        redisTemplate.delete(heartbeatKey);
-        redisTemplate.delete(activityKey);
+        deviceActivityTracker.remove(deviceName);
     }
 }
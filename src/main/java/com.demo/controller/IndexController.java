@@ -1,6 +1,8 @@
 package com.demo.controller;
 
 import com.demo.common.DeviceOnline;
+import com.demo.connector.ChargeGharConnector;
+import com.demo.connector.SyncOutbox;
 import com.demo.mqtt.MqttPublisher;
 import com.demo.mqtt.MqttSubscriber;
 import com.demo.bean.DeviceInfo;
@@ -52,6 +54,12 @@ public class IndexController {
     @Autowired
     private AdminUserService adminUserService;
 
+    @Autowired
+    private ChargeGharConnector chargeGharConnector;
+
+    @Autowired
+    private SyncOutbox syncOutbox;
+
 
     @RequestMapping("/index.html")
     public ModelAndView indexHtml() throws Exception {
@@ -287,6 +295,9 @@ public class IndexController {
             allStats.put("systemStatus", "Online");
             allStats.put("currentUser", adminId);
             allStats.put("currentUserRole", role);
+            allStats.put("chargeGharPool", chargeGharConnector.getPoolStats());
+            allStats.put("chargeGharOutbox", syncOutbox.getStats());
+            allStats.put("chargeGharSync", chargeGharConnector.getSyncStats());
             
             return HttpResult.ok(allStats);
 
@@ -7,6 +7,7 @@ import com.demo.common.AppConfig;
 import com.demo.common.HttpResult;
 import com.demo.message.ReceiveUpload;
 import com.demo.mqtt.DeviceCommandUtils;
+import com.demo.mqtt.MessageHistory;
 import com.demo.mqtt.MqttPublisher;
 import com.demo.mqtt.MqttSubscriber;
 import com.demo.serialport.SerialPortData;
@@ -14,6 +15,7 @@ import com.demo.serialport.SerialPortException;
 import com.demo.tools.ByteUtils;
 import com.demo.tools.HttpServletUtils;
 import com.demo.tools.SignUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpStatus;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
@@ -54,14 +56,23 @@ public class ListenController {
         return mv;
     }
 
+    /**
+     * Recent messages, oldest first
+     *
+     * @param after Only entries with seq greater than this cursor
+     * @param deviceName Only entries for this device
+     */
     @RequestMapping("/listen")
-    public HttpResult listen() {
+    public HttpResult listen(@RequestParam(required = false, defaultValue = "0") long after,
+                             @RequestParam(required = false) String deviceName) {
         HttpResult httpResult = new HttpResult();
-        List<MessageBody> messages = mqttSubscriber.getMessageBodys();
+        List<MessageHistory.Entry> entries = mqttSubscriber.getMessageEntries(after, StringUtils.trimToNull(deviceName));
 
         List<Map> data = new ArrayList<>();
-        for(MessageBody message : messages){
+        for(MessageHistory.Entry entry : entries){
+            MessageBody message = entry.getMessageBody();
             Map map = new HashMap();
+            map.put("seq", entry.getSeq());
             map.put("messageId", message.getMessageId());
             map.put("timestamp", message.getTimestamp());
             map.put("topic", message.getTopic());
@@ -73,7 +84,7 @@ public class ListenController {
                     byte[] bytes = message.getPayloadAsBytes();
                     int cmd = SerialPortData.checkCMD(bytes);
 
-                    map.put("data", ByteUtils.to16Hexs(bytes));
+                    map.put("data", message.getPayloadAsHex());
                     map.put("cmd", "0x" + ByteUtils.to16Hex(cmd));
                     break;
                 case "status":
@@ -134,6 +145,13 @@ public class ListenController {
         return httpResult;
     }
 
+    @RequestMapping("/listen/stats")
+    public HttpResult listenStats(){
+        HttpResult httpResult = new HttpResult();
+        httpResult.setData(mqttSubscriber.getIngestStats());
+        return httpResult;
+    }
+
     @RequestMapping("/listen/0x10")
     public HttpResult listen0x10(@RequestParam String hexs, HttpServletResponse response){
         HttpResult httpResult = new HttpResult();
@@ -3,12 +3,14 @@ package com.demo.controller;
 
 import com.demo.common.DeviceOnline;
 import com.demo.mqtt.DeviceCommandUtils;
+import com.demo.mqtt.FleetCheckExecutor;
 import com.demo.mqtt.MqttPublisher;
 import com.demo.mqtt.MqttSubscriber;
 import com.demo.common.AppConfig;
 import com.demo.common.HttpResult;
 import com.demo.message.ReceivePopupSN;
 import com.demo.message.ReceiveUpload;
+import com.demo.service.DeviceService;
 import com.demo.tools.ByteUtils;
 import com.demo.tools.HttpServletUtils;
 import com.demo.tools.SignUtils;
@@ -16,17 +18,31 @@ import org.apache.http.HttpStatus;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.BoundValueOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.ModelAndView;
 
 import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @ResponseBody
 @Controller
 public class ShowController {
+    // Safety net above the longest device command timeout (popup_random = check + popup)
+    private static final long ASYNC_TIMEOUT_MS = 30000;
+
     @Autowired
     AppConfig appConfig;
 
@@ -42,6 +58,12 @@ public class ShowController {
     @Autowired
     RedisTemplate redisTemplate;
 
+    @Autowired
+    FleetCheckExecutor fleetCheckExecutor;
+
+    @Autowired
+    DeviceService deviceService;
+
     @RequestMapping("/show.html")
     public ModelAndView showHtml(@RequestParam String deviceName) throws Exception {
         ModelAndView mv = new ModelAndView("/web/views/page/show");
@@ -86,11 +108,16 @@ public class ShowController {
         return httpResult;
     }
 
+    /**
+     * @param maxAge Optional freshness bound in ms - answer from the last known snapshot if it is newer
+     */
     @RequestMapping("/check")
-    public HttpResult check(@RequestParam String deviceName, HttpServletResponse response) throws Exception {
+    public HttpResult check(@RequestParam String deviceName, @RequestParam(required = false) Long maxAge, HttpServletResponse response) throws Exception {
         HttpResult httpResult = new HttpResult();
         try {
-            ReceiveUpload receiveUpload = deviceCommandUtils.check(deviceName);
+            ReceiveUpload receiveUpload = maxAge != null
+                ? deviceCommandUtils.check(deviceName, maxAge)
+                : deviceCommandUtils.check(deviceName);
             httpResult.setData(receiveUpload.getPowerbanks());
         }
         catch (Exception e){
@@ -165,4 +192,185 @@ public class ShowController {
         }
         return httpResult;
     }
+
+    // ========================================================================================
+    // ASYNC VARIANTS - servlet thread is released while waiting on the device
+    // ========================================================================================
+
+    @RequestMapping("/check_async")
+    public DeferredResult<ResponseEntity<HttpResult>> checkAsync(@RequestParam String deviceName, @RequestParam(required = false) Long maxAge) {
+        DeferredResult<ResponseEntity<HttpResult>> deferredResult = new DeferredResult<>(ASYNC_TIMEOUT_MS, timeoutResult());
+        CompletableFuture<ReceiveUpload> future = maxAge != null
+            ? deviceCommandUtils.checkAsync(deviceName, maxAge)
+            : deviceCommandUtils.checkAsync(deviceName);
+        future.whenComplete((receiveUpload, ex) -> {
+            if (ex != null) {
+                Throwable error = DeviceCommandUtils.unwrap(ex);
+                deferredResult.setResult(errorResult(error, error.toString()));
+                return;
+            }
+            HttpResult httpResult = new HttpResult();
+            httpResult.setData(receiveUpload.getPowerbanks());
+            deferredResult.setResult(ResponseEntity.ok(httpResult));
+        });
+        return deferredResult;
+    }
+
+    @RequestMapping("/check_all_async")
+    public DeferredResult<ResponseEntity<HttpResult>> checkAllAsync(@RequestParam String deviceName) {
+        DeferredResult<ResponseEntity<HttpResult>> deferredResult = new DeferredResult<>(ASYNC_TIMEOUT_MS, timeoutResult());
+        deviceCommandUtils.checkAllAsync(deviceName).whenComplete((receiveUpload, ex) -> {
+            if (ex != null) {
+                Throwable error = DeviceCommandUtils.unwrap(ex);
+                deferredResult.setResult(errorResult(error, error.toString()));
+                return;
+            }
+            HttpResult httpResult = new HttpResult();
+            httpResult.setData(receiveUpload.getPowerbanks());
+            deferredResult.setResult(ResponseEntity.ok(httpResult));
+        });
+        return deferredResult;
+    }
+
+    @RequestMapping("/popup_random_async")
+    public DeferredResult<ResponseEntity<HttpResult>> popupRandomAsync(@RequestParam String deviceName, @RequestParam Integer minPower) {
+        DeferredResult<ResponseEntity<HttpResult>> deferredResult = new DeferredResult<>(ASYNC_TIMEOUT_MS, timeoutResult());
+        deviceCommandUtils.popupByRandomAsync(deviceName, minPower).whenComplete((receivePopupSN, ex) -> {
+            Throwable error = ex != null ? DeviceCommandUtils.unwrap(ex) : null;
+            if (error == null && receivePopupSN.getStatus() != 0x01) {
+                error = new Exception("Popup Error:" + ByteUtils.to16Hexs(receivePopupSN.getBytes()));
+            }
+            if (error != null) {
+                deferredResult.setResult(errorResult(error, error.toString()));
+                return;
+            }
+            HttpResult httpResult = new HttpResult();
+            httpResult.setData(receivePopupSN.getSnAsString());
+            deferredResult.setResult(ResponseEntity.ok(httpResult));
+        });
+        return deferredResult;
+    }
+
+    /**
+     * Popup specific powerbank by SN (ASYNC - 15s timeout, no servlet thread held)
+     * 
+     * @param rentboxSN  Station serial number
+     * @param singleSN   Powerbank serial number to eject
+     * @return Popup result with slot, powerbankSN, status, success
+     */
+    @RequestMapping("/popup_sn_async")
+    public DeferredResult<ResponseEntity<HttpResult>> popupBySnAsync(
+        @RequestParam String rentboxSN,
+        @RequestParam String singleSN
+    ) {
+        DeferredResult<ResponseEntity<HttpResult>> deferredResult = new DeferredResult<>(ASYNC_TIMEOUT_MS, timeoutResult());
+        deviceCommandUtils.popupAsync(rentboxSN, singleSN).whenComplete((result, ex) -> {
+            if (ex != null) {
+                Throwable error = DeviceCommandUtils.unwrap(ex);
+                deferredResult.setResult(errorResult(error, error.getMessage()));
+                return;
+            }
+            java.util.Map<String, Object> data = new java.util.HashMap<>();
+            data.put("slot", result.getPinboardIndex());
+            data.put("powerbankSN", result.getSnAsString());
+            data.put("status", result.getStatus());
+            data.put("success", result.getStatus() == 0x01);
+            HttpResult httpResult = new HttpResult();
+            httpResult.setData(data);
+            deferredResult.setResult(ResponseEntity.ok(httpResult));
+        });
+        return deferredResult;
+    }
+
+    /**
+     * Fleet-wide CHECK with bounded parallel fan-out (Server-Sent Events)
+     * 
+     * Streams one "result" event per station as its reply arrives, then a
+     * "done" event with totals.
+     * 
+     * @param deviceNames Comma separated station serial numbers (optional)
+     * @param allOnline   Check every registered station that is currently ONLINE
+     */
+    @RequestMapping("/check_bulk")
+    public SseEmitter checkBulk(
+        @RequestParam(required = false) String deviceNames,
+        @RequestParam(defaultValue = "false") boolean allOnline
+    ) {
+        List<String> rentboxSNs = new ArrayList<>();
+        if (allOnline) {
+            // One batched status lookup for the whole fleet
+            List<String> registered = deviceService.getDeviceNames();
+            Map<String, DeviceOnline> statusMap = mqttPublisher.getDeviceStatusMap(
+                appConfig.getProductKey(), registered.toArray(new String[0]));
+            for (String deviceName : registered) {
+                if (statusMap.get(deviceName) == DeviceOnline.ONLINE) {
+                    rentboxSNs.add(deviceName);
+                }
+            }
+        } else if (deviceNames != null) {
+            for (String deviceName : Arrays.asList(deviceNames.split(","))) {
+                if (!deviceName.trim().isEmpty()) {
+                    rentboxSNs.add(deviceName.trim());
+                }
+            }
+        }
+
+        // Each concurrency window costs at most one check timeout (10s)
+        int windows = (rentboxSNs.size() + fleetCheckExecutor.getMaxConcurrency() - 1) / Math.max(1, fleetCheckExecutor.getMaxConcurrency());
+        SseEmitter emitter = new SseEmitter((windows + 1) * 15000L);
+
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        fleetCheckExecutor.checkAll(rentboxSNs, (rentboxSN, receiveUpload, error) -> {
+            Map<String, Object> item = new HashMap<>();
+            item.put("deviceName", rentboxSN);
+            if (error != null) {
+                failed.incrementAndGet();
+                item.put("code", HttpStatus.SC_INTERNAL_SERVER_ERROR);
+                item.put("msg", error.toString());
+            } else {
+                succeeded.incrementAndGet();
+                item.put("code", HttpStatus.SC_OK);
+                item.put("msg", "ok");
+                item.put("data", receiveUpload.getPowerbanks());
+            }
+            try {
+                emitter.send(SseEmitter.event().name("result").data(item));
+            } catch (Exception e) {
+                // Client went away - remaining results are dropped
+            }
+        }).whenComplete((v, ex) -> {
+            Map<String, Object> summary = new HashMap<>();
+            summary.put("total", rentboxSNs.size());
+            summary.put("succeeded", succeeded.get());
+            summary.put("failed", failed.get());
+            try {
+                emitter.send(SseEmitter.event().name("done").data(summary));
+                emitter.complete();
+            } catch (Exception e) {
+                emitter.completeWithError(e);
+            }
+        });
+        return emitter;
+    }
+
+    private ResponseEntity<HttpResult> timeoutResult() {
+        HttpResult httpResult = new HttpResult();
+        httpResult.setCode(HttpStatus.SC_REQUEST_TIMEOUT);
+        httpResult.setMsg("Request Time Out");
+        return ResponseEntity.status(HttpStatus.SC_REQUEST_TIMEOUT).body(httpResult);
+    }
+
+    /**
+     * Failed async command: 408 when the device did not answer in time, 500 for
+     * anything else (offline, publish failure, bad reply). The status travels in
+     * the ResponseEntity since the completion thread must not touch the response.
+     */
+    private ResponseEntity<HttpResult> errorResult(Throwable error, String msg) {
+        int status = error instanceof TimeoutException ? HttpStatus.SC_REQUEST_TIMEOUT : HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        HttpResult httpResult = new HttpResult();
+        httpResult.setCode(status);
+        httpResult.setMsg(msg);
+        return ResponseEntity.status(status).body(httpResult);
+    }
 }
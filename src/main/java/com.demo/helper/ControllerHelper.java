@@ -1,6 +1,6 @@
 package com.demo.helper;
 
-import com.demo.connector.ChargeGharConnector;
+import com.demo.connector.SyncOutbox;
 import com.demo.message.ReceiveUpload;
 import com.demo.message.Pinboard;
 import com.demo.message.Powerbank;
@@ -25,7 +25,7 @@ import java.util.concurrent.TimeUnit;
 public class ControllerHelper {
     
     @Autowired
-    private ChargeGharConnector chargeGharConnector;
+    private SyncOutbox syncOutbox;
     
     @Autowired
     private RedisTemplate redisTemplate;
@@ -77,6 +77,7 @@ public class ControllerHelper {
     /**
      * Sync device upload data to ChargeGhar Main Django app
      * Called when hardware uploads data every 20 minutes
+     * Queued in the outbox; the device gets its response without waiting on Django.
      * 
      * @param rentboxSN Device serial number
      * @param receiveUpload Parsed device data
@@ -85,11 +86,8 @@ public class ControllerHelper {
      */
     public void syncDeviceUploadToMain(String rentboxSN, ReceiveUpload receiveUpload, String signal, String ssid) {
         try {
-            boolean syncSuccess = chargeGharConnector.sendDeviceData(rentboxSN, receiveUpload, signal, ssid);
-            if (syncSuccess) {
-                System.out.println("✅ Data synced to ChargeGhar Main successfully");
-            } else {
-                System.err.println("⚠️ Failed to sync data to ChargeGhar Main (will retry on next upload)");
+            if (!syncOutbox.enqueueDeviceData(rentboxSN, receiveUpload, signal, ssid)) {
+                System.err.println("⚠️ Failed to queue data for ChargeGhar Main (will retry on next upload)");
             }
         } catch (Exception syncException) {
             System.err.println("⚠️ Error syncing to ChargeGhar Main: " + syncException.getMessage());
@@ -100,7 +98,7 @@ public class ControllerHelper {
     
     /**
      * Sync powerbank return event to ChargeGhar Main Django app
-     * Called when a powerbank is returned to station
+     * Called when a powerbank is returned to station (queued in the outbox)
      * 
      * @param rentboxSN Station serial number
      * @param powerbankSN PowerBank serial number
@@ -142,17 +140,15 @@ public class ControllerHelper {
             System.out.println("Slot: " + slotNumber);
             System.out.println("Battery Level: " + batteryLevel + "%");
             
-            boolean syncSuccess = chargeGharConnector.sendReturnedData(
+            boolean queued = syncOutbox.enqueueReturnEvent(
                 rentboxSN, 
                 powerbankSN, 
                 slotNumber, 
                 batteryLevel
             );
             
-            if (syncSuccess) {
-                System.out.println("✅ Return event sent to ChargeGhar Main successfully");
-            } else {
-                System.err.println("⚠️ Failed to send return event to ChargeGhar Main");
+            if (!queued) {
+                System.err.println("⚠️ Failed to queue return event for ChargeGhar Main");
             }
             System.out.println("========================================");
             
@@ -1,11 +1,23 @@
 package com.demo.message;
 
+import com.demo.serialport.FrameDecoder;
 import com.demo.tools.ByteUtils;
 
+import java.util.Arrays;
+
 /**
  * 机芯数据
  */
 public class Pinboard {
+    /**
+     * Bytes per pinboard record in a 0x10 frame
+     */
+    public static final int RECORD_LENGTH = 6;
+
+    private byte[] frame;
+
+    private int offset;
+
     private int[] data;
 
     private int index;
@@ -21,17 +33,32 @@ public class Pinboard {
     private int hardVersion;
 
     public Pinboard(int[] data) {
+        this(ByteUtils.toBytes(data), 0);
         this.data = data;
+    }
 
-        index = data[0];
-        undefined1 = data[1];
-        undefined2 = data[2];
-        temp = data[3];
-        softVersion = data[4];
-        hardVersion = data[5];
+    /**
+     * Decode a 6-byte pinboard record in place
+     *
+     * @param frame Raw frame bytes
+     * @param offset Offset of the record's first byte (pinboard index)
+     */
+    public Pinboard(byte[] frame, int offset) {
+        this.frame = frame;
+        this.offset = offset;
+
+        index = FrameDecoder.u8(frame, offset);
+        undefined1 = FrameDecoder.u8(frame, offset + 1);
+        undefined2 = FrameDecoder.u8(frame, offset + 2);
+        temp = FrameDecoder.u8(frame, offset + 3);
+        softVersion = FrameDecoder.u8(frame, offset + 4);
+        hardVersion = FrameDecoder.u8(frame, offset + 5);
     }
 
     public int[] getData() {
+        if (data == null && frame != null) {
+            data = ByteUtils.toUnsignedInts(Arrays.copyOfRange(frame, offset, offset + RECORD_LENGTH));
+        }
         return data;
     }
 
@@ -61,7 +88,7 @@ public class Pinboard {
 
     public int getIo() {
         //每个串口上只有一个转接板，每个转接板上都只有5个机芯
-        int ioHex = Integer.parseInt(ByteUtils.to16Hex(data[0]));
+        int ioHex = Integer.parseInt(ByteUtils.to16Hex(index));
         return ioHex / 50;
     }
 }
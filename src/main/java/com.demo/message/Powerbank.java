@@ -1,36 +1,39 @@
 package com.demo.message;
 
 
+import com.demo.serialport.FrameDecoder;
 import com.demo.tools.ByteUtils;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.Arrays;
 
 /**
  * 充电宝
+ *
+ * Flyweight view over one 15-byte record of a 0x10 frame: fields are read
+ * from the backing frame when their getter is called, so parsing a cabinet
+ * only allocates one small object per slot. Only the station-side flags
+ * (putaway, lockCount, locked, log) are held here.
  */
+@JsonPropertyOrder({"data", "pinboardIndex", "index", "status", "undefined1", "undefined2", "area", "sn",
+    "power", "temp", "voltage", "current", "softVersion", "hardVersion", "snAsInt", "snAsString",
+    "putaway", "message", "lockCount", "locked", "log", "microSwitch", "solenoidValveSwitch"})
 public class Powerbank {
+    /**
+     * Bytes per powerbank record in a 0x10 frame
+     */
+    public static final int RECORD_LENGTH = 15;
+
+    private byte[] frame;
+    private int offset;
     private int[] data;
     private int pinboardIndex;
-    private int index;
-    private int status;
-    private int undefined1;
-    private int undefined2;
-    private int batteryVol;
-    private int area;
-    private int[] sn;
-    private int power;
-    private int temp;
-    private int voltage;
-    private int current;
-    private int softVersion;
-    private int hardVersion;
-    private int snAsInt;
-    private String snAsString;
+    private boolean areaType;
+    private int frontArea;
     private boolean putaway;               //系统入库
-    private String message = "OK";         //故障说明
     private int lockCount;                 //锁孔次数
     private boolean locked;                //锁孔次数
     private boolean log;
-    private String microSwitch;            //微动开关
-    private String solenoidValveSwitch;    //电磁阀开关
 
     public Powerbank() {
     }
@@ -42,47 +45,43 @@ public class Powerbank {
 
     // New constructor with areaType support
     public Powerbank(int[] data, int pinboardIndex, boolean areaType, int frontArea) {
+        this(ByteUtils.toBytes(data), 0, pinboardIndex, areaType, frontArea);
         this.data = data;
+    }
+
+    /**
+     * View a 15-byte powerbank record in place
+     *
+     * @param frame Raw frame bytes (not copied, must not be modified afterwards)
+     * @param offset Offset of the record's first byte (slot index)
+     */
+    public Powerbank(byte[] frame, int offset, int pinboardIndex, boolean areaType, int frontArea) {
+        this.frame = frame;
+        this.offset = offset;
         this.pinboardIndex = pinboardIndex;
-        this.index = data[0];
-        this.status = data[1];
-        this.undefined1 = data[2];
-        this.batteryVol = data[3];
-        this.undefined2 = data[3];
-        this.sn = new int[]{data[5], data[6], data[7], data[8]};
-        if (areaType) {
-            String s = ByteUtils.to16Hex(frontArea) + ByteUtils.to16Hex(data[4]);
-            //没有充电宝时区域码显示0
-            this.area = data[1] != 0 ? Integer.parseInt(s, 16) : data[4];
-        } else {
-            this.area = data[4];
-        }
-        this.power = data[9];
-        this.temp = data[10];
-        this.voltage = data[11];
-        this.current = data[12];
-        this.softVersion = data[13];
-        this.hardVersion = data[14];
-        this.microSwitch = (Integer.toBinaryString(1 << 8 | data[14])).substring(1, 2);
-        this.solenoidValveSwitch = (Integer.toBinaryString(1 << 8 | data[14])).substring(2, 3);
-        this.snAsInt = ByteUtils.getJavaInt(this.sn);
-        this.snAsString = String.valueOf(this.snAsInt);
+        this.areaType = areaType;
+        this.frontArea = frontArea;
+    }
 
-        if (status > 0X01) {
-            message = "孔位异常：0X0" + status;
-        } else if (snAsInt == 0) {
-            message = "NONE";
-        }
-        else if ((temp > 60) && temp != 255) {
-            message = "温度异常，正常：10—60";
-        } else if (!(snAsString.length() == 8 || snAsString.length() == 9 || snAsString.equals("0"))) {
-            message = "SN序列号错误";
-        } else if ((power < 0 || power > 100) && power != 255) {
-            message = "电量异常，正常：0—100%";
-        }
+    /**
+     * Unsigned record byte, 0 for an empty powerbank
+     */
+    private int field(int i) {
+        return frame == null ? 0 : FrameDecoder.u8(frame, offset + i);
+    }
+
+    /**
+     * 0xFF表示无数据，显示为0
+     */
+    private int measured(int i) {
+        int value = field(i);
+        return value == 255 ? 0 : value;
     }
 
     public int[] getData() {
+        if (data == null && frame != null) {
+            data = ByteUtils.toUnsignedInts(Arrays.copyOfRange(frame, offset, offset + RECORD_LENGTH));
+        }
         return data;
     }
 
@@ -100,7 +99,7 @@ public class Powerbank {
      * @return
      */
     public int getIndex() {
-        return index;
+        return field(0);
     }
 
     /**
@@ -114,19 +113,24 @@ public class Powerbank {
      * @return
      */
     public int getStatus() {
-        return status;
+        return field(1);
     }
 
     public int getUndefined1() {
-        return undefined1;
+        return field(2);
     }
 
     public int getUndefined2() {
-        return undefined2;
+        return field(3);
     }
 
     public int getArea() {
-        return area;
+        int rawArea = field(4);
+        //没有充电宝时区域码显示0
+        if (areaType && getStatus() != 0) {
+            return frontArea << 8 | rawArea;
+        }
+        return rawArea;
     }
 
     /**
@@ -134,7 +138,10 @@ public class Powerbank {
      * @return
      */
     public int[] getSn() {
-        return sn;
+        if (frame == null) {
+            return null;
+        }
+        return ByteUtils.toUnsignedInts(Arrays.copyOfRange(frame, offset + 5, offset + 9));
     }
 
     /**
@@ -142,10 +149,7 @@ public class Powerbank {
      * @return
      */
     public Integer getPower() {
-        if (power == 255) {
-            power = 0;
-        }
-        return power;
+        return measured(9);
     }
 
     /**
@@ -153,10 +157,7 @@ public class Powerbank {
      * @return
      */
     public int getTemp() {
-        if(temp == 255){
-            temp = 0;
-        }
-        return temp;
+        return measured(10);
     }
 
     /**
@@ -164,10 +165,7 @@ public class Powerbank {
      * @return
      */
     public int getVoltage() {
-        if(voltage == 255){
-            voltage = 0;
-        }
-        return voltage;
+        return measured(11);
     }
 
     /**
@@ -175,26 +173,23 @@ public class Powerbank {
      * @return
      */
     public int getCurrent() {
-        if(current == 255){
-            current = 0;
-        }
-        return current;
+        return measured(12);
     }
 
     public int getSoftVersion() {
-        return softVersion;
+        return field(13);
     }
 
     public int getHardVersion() {
-        return hardVersion;
+        return field(14);
     }
 
     /**
-     * 柜机SN
+     * 柜机SN (raw 32 bits, negative from 0x80000000 up; 0 = empty slot)
      * @return
      */
     public int getSnAsInt() {
-        return snAsInt;
+        return frame == null ? 0 : FrameDecoder.u32(frame, offset + 5);
     }
 
     /**
@@ -202,7 +197,7 @@ public class Powerbank {
      * @return
      */
     public String getSnAsString() {
-        return snAsString;
+        return frame == null ? null : Integer.toUnsignedString(getSnAsInt());
     }
 
     /**
@@ -217,8 +212,32 @@ public class Powerbank {
         this.putaway = putaway;
     }
 
+    /**
+     * 故障说明
+     * @return
+     */
     public String getMessage() {
-        return message;
+        if (frame == null) {
+            return "OK";
+        }
+        int status = getStatus();
+        int snAsInt = getSnAsInt();
+        int temp = field(10);
+        int power = field(9);
+        if (status > 0X01) {
+            return "孔位异常：0X0" + status;
+        } else if (snAsInt == 0) {
+            return "NONE";
+        } else if ((temp > 60) && temp != 255) {
+            return "温度异常，正常：10—60";
+        }
+        String snAsString = Integer.toUnsignedString(snAsInt);
+        if (!(snAsString.length() == 8 || snAsString.length() == 9 || snAsString.equals("0"))) {
+            return "SN序列号错误";
+        } else if ((power < 0 || power > 100) && power != 255) {
+            return "电量异常，正常：0—100%";
+        }
+        return "OK";
     }
 
     public int getLockCount() {
@@ -245,11 +264,19 @@ public class Powerbank {
         this.log = log;
     }
 
+    /**
+     * 微动开关 (hardVersion bit 7)
+     * @return
+     */
     public String getMicroSwitch() {
-        return microSwitch;
+        return frame == null ? null : String.valueOf(getHardVersion() >> 7 & 1);
     }
 
+    /**
+     * 电磁阀开关 (hardVersion bit 6)
+     * @return
+     */
     public String getSolenoidValveSwitch() {
-        return solenoidValveSwitch;
+        return frame == null ? null : String.valueOf(getHardVersion() >> 6 & 1);
     }
 }
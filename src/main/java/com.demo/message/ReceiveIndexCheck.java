@@ -1,9 +1,9 @@
 package com.demo.message;
 
+import com.demo.serialport.FrameDecoder;
 import com.demo.serialport.SerialPortData;
 import com.demo.serialport.SerialPortError;
 import com.demo.serialport.SerialPortException;
-import org.apache.commons.lang3.ArrayUtils;
 
 public class ReceiveIndexCheck extends SerialPortData {
 
@@ -14,9 +14,7 @@ public class ReceiveIndexCheck extends SerialPortData {
         if (super.getCmd() != 0X28) {
             throw new SerialPortException(SerialPortError.CMD);
         }
-        int[] data = getData();
-        int[] powerBankData = ArrayUtils.subarray(data, 1, data.length);
-        powerbank = new Powerbank(powerBankData, data[0], false, 0);
+        powerbank = new Powerbank(bytes, FrameDecoder.BODY_OFFSET + 1, getBodyByte(0), false, 0);
     }
 
     public Powerbank getPowerbank() {
@@ -16,11 +16,9 @@ public class ReceivePopupIndex extends SerialPortData {
             throw new SerialPortException(SerialPortError.CMD);
         }
 
-        int[] data = getData();
-
-        this.pinboardIndex = data[0];
-        this.powerbankIndex = data[1];
-        this.status = data[2];
+        this.pinboardIndex = getBodyByte(0);
+        this.powerbankIndex = getBodyByte(1);
+        this.status = getBodyByte(2);
     }
 
     public int getPinboardIndex() {
@@ -1,14 +1,13 @@
 package com.demo.message;
 
 
+import com.demo.serialport.FrameDecoder;
 import com.demo.serialport.SerialPortData;
 import com.demo.serialport.SerialPortError;
 import com.demo.serialport.SerialPortException;
-import com.demo.tools.ByteUtils;
 
 public class ReceivePopupSN extends SerialPortData {
     private int pinboardIndex;
-    private int[] sn;
     private int status;
     private int snAsInt;
     private String snAsString;
@@ -19,13 +18,10 @@ public class ReceivePopupSN extends SerialPortData {
             throw new SerialPortException(SerialPortError.CMD);
         }
 
-        int[] data = getData();
-
-        pinboardIndex = data[0];
-        sn = new int[]{data[1], data[2], data[3], data[4]};
-        snAsInt = ByteUtils.getJavaInt(sn);
-        snAsString = String.valueOf(snAsInt);
-        status = data[5];
+        pinboardIndex = getBodyByte(0);
+        snAsInt = FrameDecoder.u32(bytes, FrameDecoder.BODY_OFFSET + 1);
+        snAsString = Integer.toUnsignedString(snAsInt);
+        status = getBodyByte(5);
     }
 
     public int getSnAsInt() {
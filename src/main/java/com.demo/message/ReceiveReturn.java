@@ -1,16 +1,15 @@
 package com.demo.message;
 
 
+import com.demo.serialport.FrameDecoder;
 import com.demo.serialport.SerialPortData;
 import com.demo.serialport.SerialPortError;
 import com.demo.serialport.SerialPortException;
-import com.demo.tools.ByteUtils;
 
 public class ReceiveReturn extends SerialPortData {
     private int pinboardIndex;
     private int hole;
     private int area;
-    private int[] sn;
     private int status;
     private int snAsInt;
     private String snAsString;
@@ -22,19 +21,16 @@ public class ReceiveReturn extends SerialPortData {
         if(super.getCmd() != 0X40){
             throw new SerialPortException(SerialPortError.CMD);
         }
-        int[] data = getData();
+        pinboardIndex = getBodyByte(0);
+        hole = getBodyByte(1);
+        area = getBodyByte(2);
 
-        pinboardIndex = data[0];
-        hole = data[1];
-        area = data[2];
-
-        sn = new int[]{data[3], data[4], data[5], data[6]};
-        snAsInt = ByteUtils.getJavaInt(sn);
-        snAsString = String.valueOf(snAsInt);
-        status = data[7];
+        snAsInt = FrameDecoder.u32(bytes, FrameDecoder.BODY_OFFSET + 3);
+        snAsString = Integer.toUnsignedString(snAsInt);
+        status = getBodyByte(7);
 
         if(bytes.length == 14){
-            version = data[8];
+            version = getBodyByte(8);
         }
     }
 }
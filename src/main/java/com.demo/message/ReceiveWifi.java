@@ -1,9 +1,9 @@
 package com.demo.message;
 
+import com.demo.serialport.FrameDecoder;
 import com.demo.serialport.SerialPortData;
 import com.demo.serialport.SerialPortError;
 import com.demo.serialport.SerialPortException;
-import com.demo.tools.ByteUtils;
 
 import java.util.Arrays;
 import java.util.List;
@@ -21,8 +21,7 @@ public class ReceiveWifi extends SerialPortData {
         if (super.getCmd() != 0XCF) {
             throw new SerialPortException(SerialPortError.CMD);
         }
-        int[] data = getData();
-        String wifiStr = new String(ByteUtils.toBytes(data));
+        String wifiStr = new String(bytes, FrameDecoder.BODY_OFFSET, getBodyLength());
         String nameStr = wifiStr.substring(1, wifiStr.length() - 1);
         String[] nameArray = nameStr.split(",");
         names = Arrays.stream(nameArray).filter(element -> element.startsWith("\"") && element.endsWith("\"")).map(element -> element.substring(1, element.length() - 1)).collect(Collectors.toList());
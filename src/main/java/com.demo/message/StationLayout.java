@@ -0,0 +1,224 @@
+package com.demo.message;
+
+import com.demo.serialport.FrameDecoder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 机柜布局：0x10 上报帧中机芯/孔位的排列
+ *
+ * A layout is fully determined by the body length, whether body bytes 1/2
+ * are both 0xFF (extended frame) and, for a couple of ambiguous lengths,
+ * body byte 66. Layouts are resolved once per distinct combination and
+ * cached, so ReceiveUpload only does a map lookup per frame.
+ *
+ * New cabinet models can be added with {@link #register}, which takes
+ * precedence over the built-in hole detection for that body length.
+ */
+public final class StationLayout {
+
+    /**
+     * Body index of the marker byte used by the 192-byte extended frame and
+     * the 3-port / 4+2 disambiguation
+     */
+    private static final int MARKER_INDEX = 66;
+
+    private static final Map<Integer, StationLayout> registered = new ConcurrentHashMap<>();
+
+    private static final Map<Integer, StationLayout> cache = new ConcurrentHashMap<>();
+
+    private final int holes;
+
+    private final int[] boardOffsets;
+
+    private final int[] boardHoles;
+
+    /**
+     * @param holes Nominal holes per pinboard (what getHole() reports)
+     * @param boardOffsets Body offset of each pinboard record
+     * @param boardHoles Powerbank records following each pinboard
+     */
+    public StationLayout(int holes, int[] boardOffsets, int[] boardHoles) {
+        if (boardOffsets.length != boardHoles.length) {
+            throw new IllegalArgumentException("boardOffsets and boardHoles differ in length");
+        }
+        this.holes = holes;
+        this.boardOffsets = boardOffsets.clone();
+        this.boardHoles = boardHoles.clone();
+    }
+
+    /**
+     * Layout of boardCount identical pinboards, each followed by holes powerbank records
+     */
+    public static StationLayout uniform(int holes, int boardCount) {
+        int[] offsets = new int[boardCount];
+        int[] boardHoles = new int[boardCount];
+        for (int i = 0; i < boardCount; i++) {
+            offsets[i] = i * recordSize(holes);
+            boardHoles[i] = holes;
+        }
+        return new StationLayout(holes, offsets, boardHoles);
+    }
+
+    public int getHoles() {
+        return holes;
+    }
+
+    public int getBoardCount() {
+        return boardOffsets.length;
+    }
+
+    /**
+     * Body offset of pinboard i
+     */
+    public int getBoardOffset(int i) {
+        return boardOffsets[i];
+    }
+
+    /**
+     * Powerbank records following pinboard i
+     */
+    public int getBoardHoles(int i) {
+        return boardHoles[i];
+    }
+
+    /**
+     * Register a layout for a cabinet model
+     *
+     * @param bodyLength Frame body length (frame length - 5)
+     * @param extended true for frames whose body bytes 1/2 are 0xFF
+     * @param layout Layout to use for matching frames
+     */
+    public static void register(int bodyLength, boolean extended, StationLayout layout) {
+        registered.put(registeredKey(bodyLength, extended), layout);
+        cache.clear();
+    }
+
+    /**
+     * Resolve the layout of a 0x10 frame from its length and marker bytes
+     */
+    public static StationLayout resolve(byte[] frame) {
+        return resolve(frame, isExtended(frame));
+    }
+
+    /**
+     * Resolve the layout of a 0x10 frame
+     *
+     * @param extended Whether to apply the extended (0xFF 0xFF) frame rules
+     */
+    public static StationLayout resolve(byte[] frame, boolean extended) {
+        int bodyLength = FrameDecoder.bodyLength(frame);
+        int marker = needsMarker(bodyLength, extended) ? FrameDecoder.u8(frame, FrameDecoder.BODY_OFFSET + MARKER_INDEX) : 0;
+        int key = (bodyLength << 9) | (extended ? 1 << 8 : 0) | marker;
+
+        StationLayout layout = cache.get(key);
+        if (layout == null) {
+            layout = registered.get(registeredKey(bodyLength, extended));
+            if (layout == null) {
+                layout = build(bodyLength, extended, marker);
+            }
+            cache.put(key, layout);
+        }
+        return layout;
+    }
+
+    /**
+     * Body bytes 1 and 2 are both 0xFF
+     */
+    public static boolean isExtended(byte[] frame) {
+        return FrameDecoder.bodyLength(frame) > 2
+            && FrameDecoder.u8(frame, FrameDecoder.BODY_OFFSET + 1) == 0xFF
+            && FrameDecoder.u8(frame, FrameDecoder.BODY_OFFSET + 2) == 0xFF;
+    }
+
+    private static int registeredKey(int bodyLength, boolean extended) {
+        return (bodyLength << 1) | (extended ? 1 : 0);
+    }
+
+    private static int recordSize(int holes) {
+        return Pinboard.RECORD_LENGTH + holes * Powerbank.RECORD_LENGTH;
+    }
+
+    private static boolean divides(int bodyLength, int recordSize) {
+        return bodyLength >= recordSize && bodyLength % recordSize == 0;
+    }
+
+    /**
+     * Lengths whose hole count depends on body byte 66
+     */
+    private static boolean needsMarker(int bodyLength, boolean extended) {
+        return extended ? bodyLength == 192 : bodyLength == 2 * recordSize(3);
+    }
+
+    /**
+     * 根据长度判断孔位数量
+     */
+    private static int detectHoles(int bodyLength, boolean extended, int marker) {
+        //扩展帧：192字节（4口+8口）
+        if (extended && bodyLength == 192) {
+            return marker == 0X05 ? 8 : 4;
+        }
+
+        //单机芯（2口）
+        if (bodyLength == recordSize(2)) {
+            return 2;
+        }
+
+        //多机芯（5口、6口、8口、4口）
+        for (int holes : new int[]{5, 6, 8, 4}) {
+            if (divides(bodyLength, recordSize(holes))) {
+                return holes;
+            }
+        }
+
+        //多机芯（3口）
+        if (divides(bodyLength, recordSize(3))) {
+            //判断是否是普及版：4+2
+            if (!extended && bodyLength / recordSize(3) == 2 && (byte) marker < 4) {
+                return 4;
+            }
+            return 3;
+        }
+
+        return 0;
+    }
+
+    private static StationLayout build(int bodyLength, boolean extended, int marker) {
+        int holes = detectHoles(bodyLength, extended, marker);
+        int recordSize = recordSize(holes);
+
+        int boardCount;
+        if (extended) {
+            boardCount = (int) Math.ceil((double) bodyLength / recordSize);
+        } else {
+            boardCount = bodyLength / recordSize;
+        }
+
+        // 192字节扩展帧（非0x05）：第1块为8口，第2块为空位
+        boolean mixed = extended && bodyLength == 192 && marker != 0X05;
+
+        int[] offsets = new int[boardCount];
+        int[] boardHoles = new int[boardCount];
+        int count = 0;
+        for (int i = 0; i < boardCount; i++) {
+            if (mixed && i == 2) {
+                continue;
+            }
+            int offset = i * recordSize;
+            int slots = mixed && i >= 1 ? 8 : holes;
+
+            // 不完整的孔位记录不解析
+            int available = (bodyLength - offset - Pinboard.RECORD_LENGTH) / Powerbank.RECORD_LENGTH;
+            offsets[count] = offset;
+            boardHoles[count] = Math.max(0, Math.min(slots, available));
+            count++;
+        }
+
+        int[] trimmedOffsets = new int[count];
+        int[] trimmedHoles = new int[count];
+        System.arraycopy(offsets, 0, trimmedOffsets, 0, count);
+        System.arraycopy(boardHoles, 0, trimmedHoles, 0, count);
+        return new StationLayout(holes, trimmedOffsets, trimmedHoles);
+    }
+}
@@ -0,0 +1,61 @@
+package com.demo.mqtt;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Cross-node wakeup for device command responses
+ *
+ * When two instances run behind the load balancer, the device reply can be
+ * received by a different node than the one holding the HTTP request.
+ * The receiving node caches the reply in Redis and publishes its key on
+ * CommandResponseRegistry.RESPONSE_CHANNEL; every node listens here and
+ * completes its local waiter straight from the cached value.
+ */
+@Component
+public class CommandResponseListener implements MessageListener {
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    @Autowired
+    private CommandResponseRegistry commandResponseRegistry;
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CommandResponseRegistry.RESPONSE_CHANNEL));
+        System.out.println("✅ Subscribed to Redis channel: " + CommandResponseRegistry.RESPONSE_CHANNEL);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            Object key = redisTemplate.getValueSerializer().deserialize(message.getBody());
+            if (!(key instanceof String)) {
+                return;
+            }
+
+            // Local replies are already delivered by CommandHandlerRegistry
+            if (!commandResponseRegistry.isWaiting((String) key)) {
+                return;
+            }
+
+            Object data = redisTemplate.boundValueOps(key).get();
+            if (data instanceof byte[] && commandResponseRegistry.complete((String) key, (byte[]) data)) {
+                System.out.println("⚡ Cross-node response delivered to local waiter: " + key);
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Failed to handle response notification: " + e.getMessage());
+        }
+    }
+}
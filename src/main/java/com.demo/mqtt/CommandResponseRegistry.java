@@ -0,0 +1,77 @@
+package com.demo.mqtt;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process correlation registry for device command responses
+ *
+ * Callers waiting on a device reply register a future under the same key
+ * that BaseCommandHandler uses for Redis caching (e.g. "check:{sn}",
+ * "popup_sn:{sn}"). CommandHandlerRegistry completes the future as soon as
+ * the matching frame arrives, so the waiting thread wakes up immediately
+ * instead of polling Redis.
+ *
+ * Concurrent callers for the same key share one future, matching the
+ * single Redis key the device reply is written to.
+ */
+@Component
+public class CommandResponseRegistry {
+
+    /**
+     * Redis channel used to announce cached responses to every node
+     */
+    public static final String RESPONSE_CHANNEL = "device_response";
+
+    private final Map<String, CompletableFuture<byte[]>> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * Register interest in the next response for a key
+     *
+     * @param key Response key (prefix + device name)
+     * @return Future completed with the raw response bytes
+     */
+    public CompletableFuture<byte[]> register(String key) {
+        return waiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+    }
+
+    /**
+     * Complete the waiter registered for a key
+     *
+     * @param key Response key (prefix + device name)
+     * @param bytes Raw response bytes
+     * @return true if a waiter was registered and completed
+     */
+    public boolean complete(String key, byte[] bytes) {
+        CompletableFuture<byte[]> future = waiters.remove(key);
+        if (future == null) {
+            return false;
+        }
+        return future.complete(bytes);
+    }
+
+    /**
+     * Remove a waiter once the caller is done with it (timeout or success)
+     * Only removes the mapping if it still points to the given future.
+     */
+    public void release(String key, CompletableFuture<byte[]> future) {
+        waiters.remove(key, future);
+    }
+
+    /**
+     * Check if anyone on this node is waiting for a key
+     */
+    public boolean isWaiting(String key) {
+        return waiters.containsKey(key);
+    }
+
+    /**
+     * Number of pending waiters (for monitoring)
+     */
+    public int getPendingCount() {
+        return waiters.size();
+    }
+}
@@ -0,0 +1,220 @@
+package com.demo.mqtt;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Last-seen timestamps per device, kept in memory and flushed to Redis in batches
+ *
+ * Heartbeat and upload frames only update a local entry; a background task
+ * writes every changed device's device_heartbeat:/device_activity: keys in
+ * one pipelined round-trip every flushIntervalMs. Each key's TTL is
+ * shortened by the time the update waited locally, so it still expires
+ * 5 / 25 minutes after the device was actually seen and other nodes see
+ * the same online window as before.
+ *
+ * getDeviceStatus reads this table first and only goes to Redis when the
+ * device has not been seen recently by this node. Disconnects are announced
+ * on DISCONNECT_CHANNEL so every node drops its local entry at once.
+ */
+@Component
+public class DeviceActivityTracker {
+
+    public static final String HEARTBEAT_PREFIX = "device_heartbeat:";
+    public static final String ACTIVITY_PREFIX = "device_activity:";
+
+    /**
+     * Redis channel announcing device disconnects to every node
+     */
+    public static final String DISCONNECT_CHANNEL = "device_disconnect";
+
+    /**
+     * Heartbeat TTL - device is online if it sent anything within 5 minutes
+     */
+    public static final long HEARTBEAT_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Activity TTL - devices upload every 20 minutes
+     */
+    public static final long ACTIVITY_TTL_MS = TimeUnit.MINUTES.toMillis(25);
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    private OfflineDetector offlineDetector;
+
+    @Value("${device.activity.flushIntervalMs:5000}")
+    private long flushIntervalMs;
+
+    private final Map<String, LastSeen> table = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "device-activity-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        long interval = Math.max(100, flushIntervalMs);
+        flushScheduler.scheduleWithFixedDelay(this::flushSafely, interval, interval, TimeUnit.MILLISECONDS);
+
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Object deviceName = redisTemplate.getValueSerializer().deserialize(message.getBody());
+            if (deviceName instanceof String) {
+                table.remove(deviceName);
+                dirty.remove(deviceName);
+                offlineDetector.remove((String) deviceName);
+            }
+        }, new ChannelTopic(DISCONNECT_CHANNEL));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushScheduler.shutdownNow();
+        flushSafely();
+    }
+
+    /**
+     * Device sent a frame or connected: refresh heartbeat and activity
+     */
+    public void touch(String deviceName, long timestamp) {
+        LastSeen lastSeen = entry(deviceName);
+        lastSeen.heartbeat = Math.max(lastSeen.heartbeat, timestamp);
+        lastSeen.activity = Math.max(lastSeen.activity, timestamp);
+        dirty.add(deviceName);
+        offlineDetector.onSeen(deviceName, timestamp);
+    }
+
+    /**
+     * Device disconnected: forget it locally and delete its Redis keys right away
+     */
+    public void remove(String deviceName) {
+        table.remove(deviceName);
+        dirty.remove(deviceName);
+        offlineDetector.remove(deviceName);
+        redisTemplate.delete(HEARTBEAT_PREFIX + deviceName);
+        redisTemplate.delete(ACTIVITY_PREFIX + deviceName);
+        try {
+            redisTemplate.convertAndSend(DISCONNECT_CHANNEL, deviceName);
+        } catch (Exception e) {
+            System.err.println("❌ Failed to publish disconnect for " + deviceName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Last heartbeat seen by this node, or 0
+     */
+    public long getLastHeartbeat(String deviceName) {
+        LastSeen lastSeen = table.get(deviceName);
+        return lastSeen == null ? 0 : lastSeen.heartbeat;
+    }
+
+    /**
+     * Last activity seen by this node, or 0
+     */
+    public long getLastActivity(String deviceName) {
+        LastSeen lastSeen = table.get(deviceName);
+        return lastSeen == null ? 0 : lastSeen.activity;
+    }
+
+    public int getPendingFlushCount() {
+        return dirty.size();
+    }
+
+    private LastSeen entry(String deviceName) {
+        LastSeen lastSeen = table.get(deviceName);
+        if (lastSeen == null) {
+            lastSeen = table.computeIfAbsent(deviceName, k -> new LastSeen());
+        }
+        return lastSeen;
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            System.err.println("❌ Failed to flush device activity to Redis: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write all changed devices to Redis in one pipeline
+     */
+    @SuppressWarnings("unchecked")
+    public void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        List<String> deviceNames = new ArrayList<>();
+        Iterator<String> iterator = dirty.iterator();
+        while (iterator.hasNext()) {
+            deviceNames.add(iterator.next());
+            iterator.remove();
+        }
+
+        final RedisSerializer keySerializer = redisTemplate.getKeySerializer();
+        final RedisSerializer valueSerializer = redisTemplate.getValueSerializer();
+        final long now = System.currentTimeMillis();
+
+        try {
+            redisTemplate.executePipelined(new RedisCallback<Object>() {
+                @Override
+                public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                    for (String deviceName : deviceNames) {
+                        LastSeen lastSeen = table.get(deviceName);
+                        if (lastSeen == null) {
+                            continue;
+                        }
+                        write(connection, HEARTBEAT_PREFIX + deviceName, lastSeen.heartbeat, HEARTBEAT_TTL_MS);
+                        write(connection, ACTIVITY_PREFIX + deviceName, lastSeen.activity, ACTIVITY_TTL_MS);
+                    }
+                    return null;
+                }
+
+                private void write(RedisConnection connection, String key, long timestamp, long ttlMs) {
+                    long remaining = ttlMs - (now - timestamp);
+                    if (timestamp <= 0 || remaining <= 0) {
+                        return;
+                    }
+                    connection.pSetEx(keySerializer.serialize(key), remaining, valueSerializer.serialize(timestamp));
+                }
+            });
+        } catch (RuntimeException e) {
+            // Retry these devices on the next run
+            dirty.addAll(deviceNames);
+            throw e;
+        }
+    }
+
+    private static class LastSeen {
+        volatile long heartbeat;
+        volatile long activity;
+    }
+}
@@ -8,13 +8,23 @@ import com.demo.message.ReceivePopupSN;
 import com.demo.message.ReceiveUpload;
 import com.demo.message.ReceiveWifi;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.BoundValueOperations;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Component
 public class DeviceCommandUtils {
@@ -30,6 +40,9 @@ public class DeviceCommandUtils {
     public static final String SEND_SET_MODE = "{\"cmd\":\"setMode\",\"data\":\"%s\"}";
     public static final String SEND_SET_VOLUME = "{\"cmd\":\"volume\",\"data\":\"%s\"}";
 
+    // Interval for the Redis safety-net read while waiting for a pushed response
+    private static final long FALLBACK_CHECK_MS = 3000;
+
     @Autowired
     MqttPublisher mqttPublisher;
 
@@ -39,52 +52,106 @@ public class DeviceCommandUtils {
     @Autowired
     RedisTemplate redisTemplate;
 
+    @Autowired
+    CommandResponseRegistry commandResponseRegistry;
+
+    @Autowired
+    StationSnapshotStore stationSnapshotStore;
+
+    // How long a finished check result is reused by callers that arrive just after it
+    @Value("${device.check.reuseWindowMs:300}")
+    private long checkReuseWindowMs;
+
     // Keep compatibility with existing cache
     public Map<String, CacheMessage> cache = new Hashtable<>();
+
+    // In-flight (and recently finished) check commands, keyed by command + station
+    private final Map<String, CompletableFuture<byte[]>> checkFlights = new ConcurrentHashMap<>();
+
+    // Drives command timeouts and the Redis safety-net read without holding request threads
+    private final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "device-command-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     public Map<String, CacheMessage> getCache() {
         return cache;
     }
 
+    @PreDestroy
+    public void shutdown() {
+        timeoutScheduler.shutdownNow();
+    }
+
     // Same business logic, just replace iotUtils with mqttPublisher
     public ReceiveUpload check(String rentboxSN) throws Exception {
-        String key = "check:" + rentboxSN;
-        byte[] data = sendPopupWait(key, rentboxSN, SEND_CHECK, 10);
-        return new ReceiveUpload(data);
+        return await(checkAsync(rentboxSN));
+    }
+
+    /**
+     * Check with a freshness bound - answered from the last 0x10 frame
+     * (upload or check reply) if it is at most maxAgeMs old, otherwise
+     * a live check is sent to the device
+     */
+    public ReceiveUpload check(String rentboxSN, long maxAgeMs) throws Exception {
+        return await(checkAsync(rentboxSN, maxAgeMs));
     }
 
     public ReceiveUpload checkAll(String rentboxSN) throws Exception {
-        String key = "check:" + rentboxSN;
-        byte[] data = sendPopupWait(key, rentboxSN, SEND_CHECK_ALL, 10);
-        return new ReceiveUpload(data);
+        return await(checkAllAsync(rentboxSN));
     }
 
     public ReceivePopupSN popup(String rentboxSN, String singleSN) throws Exception {
-        String key = "popup_sn:" + rentboxSN;
-        String message = String.format(SEND_POPUP, singleSN);
-        byte[] data = sendPopupWait(key, rentboxSN, message, 15); // 15 second timeout
-
-        return new ReceivePopupSN(data);
+        return await(popupAsync(rentboxSN, singleSN));
     }
 
     public ReceivePopupSN popupByRandom(String rentboxSN, int minPower) throws Exception {
-        // Check station status first
-        ReceiveUpload receiveUpload = check(rentboxSN);
-        Powerbank powerbank = receiveUpload.getPowerbankByRandom(minPower);
-        if (powerbank == null) {
-            throw new Exception("NO Powerbank");
+        return await(popupByRandomAsync(rentboxSN, minPower));
+    }
+
+    public ReceiveWifi getWifiList(String rentboxSN) throws Exception {
+        return await(getWifiListAsync(rentboxSN));
+    }
+
+    // Async variants - completed by the MQTT response path, no thread is held while waiting
+    public CompletableFuture<ReceiveUpload> checkAsync(String rentboxSN) {
+        return parse(sharedCheck("check", rentboxSN, SEND_CHECK), ReceiveUpload::new);
+    }
+
+    public CompletableFuture<ReceiveUpload> checkAsync(String rentboxSN, long maxAgeMs) {
+        StationSnapshotStore.Snapshot snapshot = stationSnapshotStore.getFresh(rentboxSN, maxAgeMs);
+        if (snapshot != null) {
+            return CompletableFuture.completedFuture(snapshot.getReceiveUpload());
         }
+        return checkAsync(rentboxSN);
+    }
 
-        // Popup the selected powerbank
-        ReceivePopupSN receivePopupSN = popup(rentboxSN, powerbank.getSnAsString());
-        return receivePopupSN;
+    public CompletableFuture<ReceiveUpload> checkAllAsync(String rentboxSN) {
+        return parse(sharedCheck("check_all", rentboxSN, SEND_CHECK_ALL), ReceiveUpload::new);
     }
 
-    public ReceiveWifi getWifiList(String rentboxSN) throws Exception {
+    public CompletableFuture<ReceivePopupSN> popupAsync(String rentboxSN, String singleSN) {
+        String key = "popup_sn:" + rentboxSN;
+        String message = String.format(SEND_POPUP, singleSN);
+        return parse(sendCommandAsync(key, rentboxSN, message, 15), ReceivePopupSN::new); // 15 second timeout
+    }
+
+    public CompletableFuture<ReceivePopupSN> popupByRandomAsync(String rentboxSN, int minPower) {
+        // Check station status first, then popup the selected powerbank
+        return checkAsync(rentboxSN).thenCompose(receiveUpload -> {
+            Powerbank powerbank = receiveUpload.getPowerbankByRandom(minPower);
+            if (powerbank == null) {
+                throw new CompletionException(new Exception("NO Powerbank"));
+            }
+            return popupAsync(rentboxSN, powerbank.getSnAsString());
+        });
+    }
+
+    public CompletableFuture<ReceiveWifi> getWifiListAsync(String rentboxSN) {
         String key = "getwifi:" + rentboxSN;
         // Use JSON command like manufacturer demo - NOT binary packet
-        byte[] data = sendPopupWait(key, rentboxSN, SEND_GET_WIFI, 15);
-        return new ReceiveWifi(data);
+        return parse(sendCommandAsync(key, rentboxSN, SEND_GET_WIFI, 15), ReceiveWifi::new);
     }
 
     public void setWifi(String rentboxSN, String ssid, String password) throws Exception {
@@ -111,41 +178,152 @@ public class DeviceCommandUtils {
         mqttPublisher.sendMsgAsync(appConfig.getProductKey(), emqxTopic, message, 1);
     }
 
-    private byte[] sendPopupWait(String key, String rentboxSN, Object message, int overSecond) throws Exception {
-        this.checkOnlineStatus(rentboxSN);
+    /**
+     * Single-flight check: concurrent callers for the same station and command
+     * share one MQTT command and one reply. A successful reply stays shared
+     * for checkReuseWindowMs so callers arriving just after it are answered
+     * without another device round-trip; failures are never reused.
+     */
+    private CompletableFuture<byte[]> sharedCheck(String command, String rentboxSN, String message) {
+        String flightKey = command + ":" + rentboxSN;
+        CompletableFuture<byte[]> flight = checkFlights.get(flightKey);
+        if (flight != null) {
+            return flight;
+        }
+
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        flight = checkFlights.putIfAbsent(flightKey, created);
+        if (flight != null) {
+            return flight;
+        }
+
+        String key = "check:" + rentboxSN;
+        sendCommandAsync(key, rentboxSN, message, 10).whenComplete((bytes, ex) -> {
+            if (ex != null) {
+                checkFlights.remove(flightKey, created);
+                created.completeExceptionally(ex);
+                return;
+            }
+            created.complete(bytes);
+            if (checkReuseWindowMs > 0) {
+                timeoutScheduler.schedule(() -> checkFlights.remove(flightKey, created), checkReuseWindowMs, TimeUnit.MILLISECONDS);
+            } else {
+                checkFlights.remove(flightKey, created);
+            }
+        });
+        return created;
+    }
 
+    /**
+     * Publish a command and return a future completed with the device reply
+     *
+     * The reply is pushed in by CommandHandlerRegistry (same node) or
+     * CommandResponseListener (other node). A scheduled Redis read covers
+     * missed notifications, and the future fails with a TimeoutException
+     * ("Request Time Out") after overSecond seconds.
+     */
+    private CompletableFuture<byte[]> sendCommandAsync(String key, String rentboxSN, Object message, int overSecond) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        try {
+            this.checkOnlineStatus(rentboxSN);
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        // Local waiter is completed by CommandHandlerRegistry when the reply lands on this node
+        CompletableFuture<byte[]> waiter = commandResponseRegistry.register(key);
+        waiter.thenAccept(result::complete);
+
+        // Redis key is still set so the reply is cached if it lands on another node
         BoundValueOperations operations = redisTemplate.boundValueOps(key);
         operations.set(null, overSecond, TimeUnit.SECONDS);
 
+        // Replies are pushed in locally or via Redis pub/sub; the Redis read is only a safety net
+        ScheduledFuture<?> fallbackCheck = timeoutScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                Object data = operations.get();
+                if (data != null && data instanceof byte[]) {
+                    result.complete((byte[]) data);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, FALLBACK_CHECK_MS, FALLBACK_CHECK_MS, TimeUnit.MILLISECONDS);
+
+        ScheduledFuture<?> timeout = timeoutScheduler.schedule(
+            () -> result.completeExceptionally(new TimeoutException("Request Time Out")),
+            overSecond, TimeUnit.SECONDS);
+
+        result.whenComplete((bytes, ex) -> {
+            fallbackCheck.cancel(false);
+            timeout.cancel(false);
+            commandResponseRegistry.release(key, waiter);
+            if (bytes != null) {
+                redisTemplate.boundValueOps(key).expire(-1, TimeUnit.MILLISECONDS);
+            }
+        });
+
+        // Publish without holding this thread for the broker ack; a failed publish fails the command
         String emqxTopic = "/" + appConfig.getProductKey() + "/" + rentboxSN + "/user/get";
-        
+        CompletableFuture<Void> published;
         if (message instanceof byte[]) {
-            mqttPublisher.sendMsgAsync(appConfig.getProductKey(), emqxTopic, (byte[]) message, 1);
+            published = mqttPublisher.publishAsync(appConfig.getProductKey(), emqxTopic, (byte[]) message, 1);
         } else {
-            mqttPublisher.sendMsgAsync(appConfig.getProductKey(), emqxTopic, message.toString(), 1);
+            published = mqttPublisher.publishAsync(appConfig.getProductKey(), emqxTopic, message.toString(), 1);
         }
+        published.whenComplete((v, ex) -> {
+            if (ex != null) {
+                result.completeExceptionally(unwrap(ex));
+            }
+        });
+
+        return result;
+    }
 
-        byte[] bytes = null;
-        for (int i = 0; i < overSecond * 2; i++) {
-            Thread.sleep(500);
-            Object data = null;
+    /**
+     * Parse the reply frame; parse errors complete the future exceptionally
+     */
+    private static <T> CompletableFuture<T> parse(CompletableFuture<byte[]> future, FrameParser<T> parser) {
+        return future.thenApply(bytes -> {
             try {
-                data = operations.get();
+                return parser.parse(bytes);
             } catch (Exception e) {
-                e.printStackTrace();
+                throw new CompletionException(e);
             }
-            if (data != null && data instanceof byte[]) {
-                bytes = (byte[]) data;
-                redisTemplate.boundValueOps(key).expire(-1, TimeUnit.MILLISECONDS);
-                break;
+        });
+    }
+
+    /**
+     * Block on an async command for the sync API, rethrowing the original exception
+     *
+     * A timeout is rethrown as the plain Exception("Request Time Out") the sync
+     * endpoints have always reported; only the async API sees the TimeoutException.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof TimeoutException) {
+                throw new Exception(cause.getMessage());
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
             }
+            throw e;
         }
+    }
 
-        if (bytes == null) {
-            throw new Exception("Request Time Out");
+    /**
+     * Strip CompletionException/ExecutionException wrappers added by CompletableFuture
+     */
+    public static Throwable unwrap(Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
         }
-
-        return bytes;
+        return cause;
     }
 
     public void checkOnlineStatus(String rentboxSN) throws Exception {
@@ -154,4 +332,8 @@ public class DeviceCommandUtils {
             throw new Exception("Device is Offline");
         }
     }
-}
\ No newline at end of file
+
+    private interface FrameParser<T> {
+        T parse(byte[] bytes) throws Exception;
+    }
+}
@@ -0,0 +1,142 @@
+package com.demo.mqtt;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops QoS 1 redeliveries of device frames before they reach the handlers
+ *
+ * After a reconnect the broker may deliver the same frame again; for
+ * unsolicited events such as 0x40 RETURN that would report the return to
+ * Django twice. Each device keeps the last few (payload hash, time bucket)
+ * pairs in two small long arrays. A frame whose hash was already seen in
+ * the current or previous bucket is a duplicate, so a frame is recognised
+ * for between one and two windowMs after the first copy.
+ *
+ * Only the commands listed in mqtt.dedup.commands are filtered: command
+ * responses are left alone, since asking a station the same thing twice
+ * legitimately gets the same bytes back.
+ */
+@Component
+public class DuplicateFilter {
+
+    @Value("${mqtt.dedup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${mqtt.dedup.windowMs:10000}")
+    private long windowMs;
+
+    @Value("${mqtt.dedup.perDevice:8}")
+    private int perDevice;
+
+    @Value("${mqtt.dedup.commands:0x40}")
+    private String commands;
+
+    private final Set<Integer> filteredCommands = new HashSet<>();
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        windowMs = Math.max(1, windowMs);
+        perDevice = Math.max(1, perDevice);
+        for (String command : commands.split(",")) {
+            if (!command.trim().isEmpty()) {
+                filteredCommands.add(Integer.decode(command.trim()));
+            }
+        }
+    }
+
+    /**
+     * Record a frame and report whether the same frame was seen recently
+     *
+     * @return true if the frame should be dropped
+     */
+    public boolean isDuplicate(String deviceName, int cmd, byte[] payload) {
+        if (!enabled || payload == null || !filteredCommands.contains(cmd)) {
+            return false;
+        }
+        checked.incrementAndGet();
+
+        long hash = hash(payload);
+        long bucket = System.currentTimeMillis() / windowMs;
+        Window window = windows.get(deviceName);
+        if (window == null) {
+            window = windows.computeIfAbsent(deviceName, k -> new Window(perDevice));
+        }
+        if (window.seen(hash, bucket)) {
+            duplicates.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public long getCheckedCount() {
+        return checked.get();
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    /**
+     * Snapshot of the dedup counters (for monitoring)
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("windowMs", windowMs);
+        stats.put("devices", windows.size());
+        stats.put("checked", checked.get());
+        stats.put("duplicates", duplicates.get());
+        return stats;
+    }
+
+    /**
+     * 64-bit FNV-1a
+     */
+    private static long hash(byte[] payload) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : payload) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Last few frames of one device, overwritten round-robin
+     */
+    private static class Window {
+        final long[] hashes;
+        final long[] buckets;
+        int next;
+
+        Window(int size) {
+            hashes = new long[size];
+            buckets = new long[size];
+        }
+
+        synchronized boolean seen(long hash, long bucket) {
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] == hash && buckets[i] >= bucket - 1 && buckets[i] != 0) {
+                    return true;
+                }
+            }
+            hashes[next] = hash;
+            buckets[next] = bucket;
+            next = (next + 1) % hashes.length;
+            return false;
+        }
+    }
+}
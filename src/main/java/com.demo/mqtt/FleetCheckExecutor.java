@@ -0,0 +1,113 @@
+package com.demo.mqtt;
+
+import com.demo.message.ReceiveUpload;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fleet-wide CHECK fan-out with a bounded number of in-flight commands
+ *
+ * Publishes check commands for many stations in parallel (at most
+ * maxConcurrency outstanding at once) and reports each parsed result
+ * as soon as its reply arrives. Since DeviceCommandUtils.checkAsync holds
+ * no thread while waiting, a whole fleet is sampled in roughly one device
+ * round-trip per concurrency window.
+ */
+@Component
+public class FleetCheckExecutor {
+
+    @Autowired
+    private DeviceCommandUtils deviceCommandUtils;
+
+    @Value("${device.check.bulkConcurrency:64}")
+    private int maxConcurrency;
+
+    /**
+     * Callback for each station result (called on the MQTT/timeout thread)
+     */
+    public interface ResultListener {
+        /**
+         * @param rentboxSN Station serial number
+         * @param receiveUpload Parsed check reply, or null on error
+         * @param error Failure cause (offline, timeout, parse error), or null on success
+         */
+        void onResult(String rentboxSN, ReceiveUpload receiveUpload, Throwable error);
+    }
+
+    /**
+     * Check all given stations with bounded parallelism
+     *
+     * @param rentboxSNs Station serial numbers
+     * @param listener Receives each result as it arrives
+     * @return Future completed once every station has reported
+     */
+    public CompletableFuture<Void> checkAll(List<String> rentboxSNs, ResultListener listener) {
+        FanOut fanOut = new FanOut(rentboxSNs, listener);
+        if (rentboxSNs.isEmpty()) {
+            fanOut.done.complete(null);
+        } else {
+            pump(fanOut);
+        }
+        return fanOut.done;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Launch commands until the in-flight window is full
+     * Only one thread pumps at a time; re-entrant calls (e.g. a command that
+     * fails synchronously) just ask the active pump to loop again.
+     */
+    private void pump(FanOut fanOut) {
+        if (fanOut.wip.getAndIncrement() != 0) {
+            return;
+        }
+        int limit = Math.max(1, maxConcurrency);
+        do {
+            while (fanOut.inFlight.get() < limit && fanOut.next < fanOut.rentboxSNs.size()) {
+                String rentboxSN = fanOut.rentboxSNs.get(fanOut.next++);
+                fanOut.inFlight.incrementAndGet();
+                launch(fanOut, rentboxSN);
+            }
+        } while (fanOut.wip.decrementAndGet() != 0);
+    }
+
+    private void launch(FanOut fanOut, String rentboxSN) {
+        deviceCommandUtils.checkAsync(rentboxSN).whenComplete((receiveUpload, ex) -> {
+            try {
+                fanOut.listener.onResult(rentboxSN, receiveUpload, ex == null ? null : DeviceCommandUtils.unwrap(ex));
+            } catch (Exception e) {
+                System.err.println("❌ Fleet check listener error for " + rentboxSN + ": " + e.getMessage());
+            }
+            fanOut.inFlight.decrementAndGet();
+            if (fanOut.remaining.decrementAndGet() == 0) {
+                fanOut.done.complete(null);
+            } else {
+                pump(fanOut);
+            }
+        });
+    }
+
+    private static class FanOut {
+        final List<String> rentboxSNs;
+        final ResultListener listener;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final AtomicInteger wip = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger remaining;
+        int next;   // only touched by the pumping thread
+
+        FanOut(List<String> rentboxSNs, ResultListener listener) {
+            this.rentboxSNs = rentboxSNs;
+            this.listener = listener;
+            this.remaining = new AtomicInteger(rentboxSNs.size());
+        }
+    }
+}
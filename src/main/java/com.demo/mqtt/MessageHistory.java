@@ -0,0 +1,134 @@
+package com.demo.mqtt;
+
+import com.demo.common.MessageBody;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size, lock-free history of recent messages for the /listen page
+ *
+ * Every message gets a sequence number (starting at 1) and is written to
+ * slot seq % capacity, overwriting the entry capacity messages older.
+ * Writers only do one getAndIncrement and a compare-and-set of the slot,
+ * so publishers, the subscriber workers and HTTP controllers never block
+ * each other. A slot only ever moves to a newer sequence: a writer that
+ * stalled long enough to be lapped leaves the newer entry in place.
+ *
+ * Readers walk the sequence range they are interested in and keep the
+ * entries whose slot still holds the expected sequence. A cursor (the last
+ * sequence a client has seen) lets /listen return only newer entries.
+ */
+public class MessageHistory {
+
+    private final int capacity;
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLong nextSeq = new AtomicLong(1);
+
+    /**
+     * Entries with a lower sequence are hidden (set by clear)
+     */
+    private volatile long floorSeq = 1;
+
+    public MessageHistory(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    /**
+     * Append a message
+     *
+     * @return Sequence number assigned to the message
+     */
+    public long add(MessageBody messageBody) {
+        long seq = nextSeq.getAndIncrement();
+        int index = (int) (seq % capacity);
+        Entry entry = new Entry(seq, messageBody);
+        Entry current = slots.get(index);
+        while (current == null || current.seq < seq) {
+            if (slots.compareAndSet(index, current, entry)) {
+                break;
+            }
+            current = slots.get(index);
+        }
+        return seq;
+    }
+
+    /**
+     * Entries newer than a cursor, oldest first
+     *
+     * @param afterSeq Only return entries with a higher sequence (0 for all)
+     * @param deviceName Only return entries for this device (null for all)
+     */
+    public List<Entry> snapshot(long afterSeq, String deviceName) {
+        long end = nextSeq.get();
+        long start = Math.max(Math.max(afterSeq + 1, floorSeq), end - capacity);
+
+        List<Entry> result = new ArrayList<>();
+        for (long seq = start; seq < end; seq++) {
+            Entry entry = slots.get((int) (seq % capacity));
+            if (entry == null || entry.seq < seq) {
+                // Sequence claimed but not written yet; stop so the cursor does not skip it
+                break;
+            }
+            if (entry.seq > seq) {
+                // Already overwritten by a newer message
+                continue;
+            }
+            if (deviceName == null || deviceName.equals(entry.messageBody.getDeviceName())) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * All retained messages, oldest first
+     */
+    public List<MessageBody> getMessageBodys() {
+        List<Entry> entries = snapshot(0, null);
+        List<MessageBody> messageBodys = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            messageBodys.add(entry.messageBody);
+        }
+        return messageBodys;
+    }
+
+    /**
+     * Hide everything recorded so far (sequence numbers keep increasing)
+     */
+    public void clear() {
+        floorSeq = nextSeq.get();
+    }
+
+    /**
+     * Sequence number of the latest message (0 if none yet)
+     */
+    public long getLastSeq() {
+        return nextSeq.get() - 1;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public static class Entry {
+        private final long seq;
+        private final MessageBody messageBody;
+
+        Entry(long seq, MessageBody messageBody) {
+            this.seq = seq;
+            this.messageBody = messageBody;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public MessageBody getMessageBody() {
+            return messageBody;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.demo.mqtt;
+
+import com.demo.serialport.FrameDecoder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded hand-off between the Paho callback thread and message processing
+ *
+ * MqttSubscriber.messageArrived only enqueues here; Redis writes, handler
+ * dispatch and logging run on a small pool of workers. Each device name is
+ * pinned to one worker (hash of the name), so frames from one station are
+ * still processed in arrival order while a slow station or a slow Redis
+ * call only holds back its own shard.
+ *
+ * When a shard's queue is full the overflow policy decides what happens:
+ * BLOCK (default) holds the Paho thread until there is room, pushing back
+ * on the broker; with blockTimeoutMs > 0 it gives up after that long and
+ * drops the incoming frame. DROP_NEWEST discards the incoming frame and
+ * DROP_OLDEST the oldest queued frame of that shard.
+ *
+ * 0x40 RETURN frames are never dropped by any policy: they are already
+ * acknowledged to the broker, which will not deliver them again. An
+ * incoming RETURN waits for room and DROP_OLDEST skips queued ones.
+ */
+@Component
+public class MqttIngestPipeline {
+
+    public enum OverflowPolicy {
+        DROP_NEWEST, DROP_OLDEST, BLOCK
+    }
+
+    /**
+     * Unsolicited powerbank return event, never dropped
+     */
+    private static final int CMD_RETURN = 0x40;
+
+    /**
+     * Processes one inbound frame on a worker thread
+     */
+    public interface Handler {
+        void handle(String deviceName, String messageType, String topic, byte[] payload, long receivedAt);
+    }
+
+    @Value("${mqtt.ingest.workers:4}")
+    private int workerCount;
+
+    @Value("${mqtt.ingest.queueCapacity:1000}")
+    private int queueCapacity;
+
+    @Value("${mqtt.ingest.overflowPolicy:BLOCK}")
+    private OverflowPolicy overflowPolicy;
+
+    // 0 = wait until there is room
+    @Value("${mqtt.ingest.blockTimeoutMs:0}")
+    private long blockTimeoutMs;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final List<BlockingQueue<Frame>> queues = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = false;
+    private Handler handler;
+
+    /**
+     * Start the workers (idempotent)
+     *
+     * @param handler Called for every accepted frame, on the frame's shard worker
+     */
+    public synchronized void start(Handler handler) {
+        if (running) {
+            return;
+        }
+        this.handler = handler;
+        int count = Math.max(1, workerCount);
+        int capacity = Math.max(1, queueCapacity);
+        for (int i = 0; i < count; i++) {
+            BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(capacity);
+            Thread worker = new Thread(() -> drain(queue), "mqtt-ingest-" + i);
+            worker.setDaemon(true);
+            queues.add(queue);
+            workers.add(worker);
+        }
+        running = true;
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        System.out.println("✅ MQTT ingest pipeline started: " + count + " workers, queue " + capacity
+            + " per worker, overflow " + overflowPolicy);
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Enqueue a frame for its device's shard
+     *
+     * @return false if the incoming frame was dropped
+     */
+    public boolean submit(String deviceName, String messageType, String topic, byte[] payload) {
+        received.incrementAndGet();
+        if (!running) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        Frame frame = new Frame(deviceName, messageType, topic, payload, System.currentTimeMillis());
+        BlockingQueue<Frame> queue = queues.get(shard(deviceName));
+        if (queue.offer(frame)) {
+            return true;
+        }
+
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            // Make room by evicting the oldest droppable frame; a worker may take the slot first
+            Frame evicted = evictOldest(queue);
+            if (evicted != null) {
+                dropped.incrementAndGet();
+                logDrop(evicted);
+            }
+            if (queue.offer(frame)) {
+                return true;
+            }
+        }
+
+        boolean mustKeep = frame.cmd == CMD_RETURN;
+        if (overflowPolicy == OverflowPolicy.BLOCK || mustKeep) {
+            if (put(queue, frame, mustKeep ? 0 : blockTimeoutMs)) {
+                return true;
+            }
+        }
+
+        dropped.incrementAndGet();
+        logDrop(frame);
+        return false;
+    }
+
+    /**
+     * Wait for room in the queue (timeoutMs <= 0: until there is room or shutdown)
+     */
+    private boolean put(BlockingQueue<Frame> queue, Frame frame, long timeoutMs) {
+        try {
+            if (timeoutMs > 0) {
+                return queue.offer(frame, timeoutMs, TimeUnit.MILLISECONDS);
+            }
+            while (running) {
+                if (queue.offer(frame, 1, TimeUnit.SECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Remove the oldest queued frame that may be dropped (not a RETURN)
+     *
+     * @return The removed frame, or null if none could be removed
+     */
+    private static Frame evictOldest(BlockingQueue<Frame> queue) {
+        for (Frame queued : queue) {
+            if (queued.cmd != CMD_RETURN) {
+                return queue.remove(queued) ? queued : null;
+            }
+        }
+        return null;
+    }
+
+    private int shard(String deviceName) {
+        return (deviceName.hashCode() & Integer.MAX_VALUE) % queues.size();
+    }
+
+    private void drain(BlockingQueue<Frame> queue) {
+        while (running) {
+            Frame frame;
+            try {
+                frame = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                handler.handle(frame.deviceName, frame.messageType, frame.topic, frame.payload, frame.receivedAt);
+                processed.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                System.err.println("Error processing MQTT message: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void logDrop(Frame frame) {
+        long total = dropped.get();
+        // Avoid flooding the log while the pipeline is saturated
+        if (total == 1 || total % 1000 == 0) {
+            String cmd = frame.cmd < 0 ? "?" : "0x" + Integer.toHexString(frame.cmd).toUpperCase();
+            System.err.println("⚠️ MQTT ingest queue full (" + overflowPolicy + "), dropped CMD " + cmd
+                + " from " + frame.deviceName + " - total dropped: " + total);
+        }
+    }
+
+    /**
+     * Frames currently queued across all shards
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Frame> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Snapshot of the pipeline counters (for monitoring)
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", running);
+        stats.put("workers", queues.size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("overflowPolicy", overflowPolicy.name());
+        stats.put("queueDepth", getQueueDepth());
+        List<Integer> shardDepths = new ArrayList<>();
+        for (BlockingQueue<Frame> queue : queues) {
+            shardDepths.add(queue.size());
+        }
+        stats.put("shardDepths", shardDepths);
+        stats.put("received", received.get());
+        stats.put("processed", processed.get());
+        stats.put("dropped", dropped.get());
+        stats.put("failed", failed.get());
+        return stats;
+    }
+
+    private static class Frame {
+        final String deviceName;
+        final String messageType;
+        final String topic;
+        final byte[] payload;
+        final long receivedAt;
+        // Command byte of a 0xA8 frame, -1 for anything else (e.g. JSON)
+        final int cmd;
+
+        Frame(String deviceName, String messageType, String topic, byte[] payload, long receivedAt) {
+            this.deviceName = deviceName;
+            this.messageType = messageType;
+            this.topic = topic;
+            this.payload = payload;
+            this.receivedAt = receivedAt;
+            this.cmd = payload != null && payload.length > 3 && FrameDecoder.u8(payload, 0) == FrameDecoder.HEAD
+                ? FrameDecoder.cmd(payload) : -1;
+        }
+    }
+}
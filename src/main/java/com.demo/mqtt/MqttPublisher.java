@@ -6,18 +6,31 @@ import com.demo.common.MessageBody;
 import com.demo.common.AppConfig;
 import org.eclipse.paho.client.mqttv3.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.BoundValueOperations;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.TreeMap;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component
 public class MqttPublisher implements MqttCallback {
+    /**
+     * Devices per MGET in getDeviceStatusMap (two keys each)
+     */
+    private static final int STATUS_BATCH_SIZE = 500;
     
     @Autowired
     private AppConfig appConfig;
@@ -28,16 +41,57 @@ public class MqttPublisher implements MqttCallback {
     @Autowired
     RedisTemplate redisTemplate;
 
-    private MqttClient mqttClient;
+    @Autowired
+    private DeviceActivityTracker deviceActivityTracker;
+
+    @Value("${mqtt.publish.maxInflight:64}")
+    private int maxInflight;
+
+    @Value("${mqtt.publish.acquireTimeoutMs:5000}")
+    private long acquireTimeoutMs;
+
+    @Value("${mqtt.publish.maxQueued:1000}")
+    private int maxQueued;
+
+    /**
+     * Number of publisher connections; each station is pinned to one of them
+     */
+    @Value("${mqtt.publish.connections:1}")
+    private int connectionCount;
+
+    /**
+     * Virtual nodes per connection on the consistent-hash ring
+     */
+    private static final int RING_REPLICAS = 64;
+
+    private final List<Connection> connections = new ArrayList<>();
+    private final TreeMap<Integer, Connection> ring = new TreeMap<>();
 
     @PostConstruct
     public void init() throws Exception {
+        maxInflight = Math.max(1, maxInflight);
+        maxQueued = Math.max(0, maxQueued);
+        connectionCount = Math.max(1, connectionCount);
+
         String protocol = appConfig.isMqttSsl() ? "ssl://" : "tcp://";
         String broker = protocol + appConfig.getMqttBroker() + ":" + appConfig.getMqttPort();
         
         // Add unique timestamp to prevent clientId conflicts on restart
-        String clientId = appConfig.getMqttClientId() + "-publisher-" + System.currentTimeMillis();
-        mqttClient = new MqttClient(broker, clientId);
+        long startedAt = System.currentTimeMillis();
+        for (int i = 0; i < connectionCount; i++) {
+            String clientId = connectionCount == 1
+                ? appConfig.getMqttClientId() + "-publisher-" + startedAt
+                : appConfig.getMqttClientId() + "-publisher-" + i + "-" + startedAt;
+            Connection connection = connect(broker, clientId);
+            connections.add(connection);
+            for (int r = 0; r < RING_REPLICAS; r++) {
+                ring.put(hash(clientId + "#" + r), connection);
+            }
+        }
+    }
+
+    private Connection connect(String broker, String clientId) throws MqttException {
+        MqttAsyncClient mqttClient = new MqttAsyncClient(broker, clientId);
 
         MqttConnectOptions options = new MqttConnectOptions();
         options.setUserName(appConfig.getMqttUsername());
@@ -46,12 +100,13 @@ public class MqttPublisher implements MqttCallback {
         options.setKeepAliveInterval(60);
         options.setConnectionTimeout(30);
         options.setAutomaticReconnect(true);  // Enable automatic reconnection
+        options.setMaxInflight(maxInflight);
 
         // Set callback to monitor connection status
         mqttClient.setCallback(this);
         
         try {
-            mqttClient.connect(options);
+            mqttClient.connect(options).waitForCompletion(options.getConnectionTimeout() * 1000L);
             
             // ✅ VERIFY CONNECTION BEFORE PROCEEDING
             if (!mqttClient.isConnected()) {
@@ -60,6 +115,7 @@ public class MqttPublisher implements MqttCallback {
             
             System.out.println("✅ MQTT Publisher connected to: " + broker);
             System.out.println("   Client ID: " + clientId);
+            System.out.println("   Max in-flight: " + maxInflight);
         } catch (MqttException e) {
             System.err.println("❌ MQTT Publisher connection failed!");
             System.err.println("   Error: " + e.getMessage());
@@ -67,6 +123,42 @@ public class MqttPublisher implements MqttCallback {
             System.err.println("   Broker: " + broker);
             throw e;
         }
+        return new Connection(mqttClient, maxInflight);
+    }
+
+    /**
+     * Connection a station's commands go through
+     * Consistent hashing keeps a station on the same connection (so its
+     * commands stay ordered) and only remaps ~1/N stations if N changes.
+     */
+    private Connection connectionFor(String topic) {
+        if (connections.size() == 1) {
+            return connections.get(0);
+        }
+        Map.Entry<Integer, Connection> entry = ring.ceilingEntry(hash(stationOf(topic)));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Station name from "/{productKey}/{deviceName}/user/get" (leading "/" optional)
+     */
+    private static String stationOf(String topic) {
+        String[] parts = topic.split("/");
+        int index = topic.startsWith("/") ? 2 : 1;
+        return parts.length > index ? parts[index] : topic;
+    }
+
+    /**
+     * Well-spread 32-bit hash (String.hashCode mixed with the murmur3 finalizer)
+     */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
     }
 
     /**
@@ -88,49 +180,58 @@ public class MqttPublisher implements MqttCallback {
 
     /**
      * Called when message delivery is complete
+     * Delivery is reported through each publishAsync future instead.
      */
     @Override
     public void deliveryComplete(IMqttDeliveryToken token) {
-        try {
-            String[] topics = token.getTopics();
-            if (topics != null && topics.length > 0) {
-                System.out.println("✅ Message delivered successfully to topic: " + topics[0]);
-            }
-        } catch (Exception e) {
-            // Fallback if getTopics() fails
-            System.out.println("✅ Message delivered successfully");
-        }
     }
 
     /**
      * Gracefully disconnect publisher
      */
     public void disconnect() {
-        try {
-            if (mqttClient != null && mqttClient.isConnected()) {
-                mqttClient.disconnect();
-                mqttClient.close();
-                System.out.println("✅ MQTT Publisher disconnected");
+        for (Connection connection : connections) {
+            try {
+                MqttAsyncClient mqttClient = connection.client;
+                if (mqttClient.isConnected()) {
+                    mqttClient.disconnect().waitForCompletion();
+                    mqttClient.close();
+                    System.out.println("✅ MQTT Publisher disconnected: " + mqttClient.getClientId());
+                }
+            } catch (Exception e) {
+                System.err.println("❌ Error disconnecting MQTT Publisher: " + e.getMessage());
             }
-        } catch (Exception e) {
-            System.err.println("❌ Error disconnecting MQTT Publisher: " + e.getMessage());
         }
     }
 
     // Device status check based on heartbeat and activity
     public DeviceOnline getDeviceStatus(String productKey, String deviceName) {
-        // 1. Check last heartbeat in Redis
-        String heartbeatKey = "device_heartbeat:" + deviceName;
+        long now = System.currentTimeMillis();
+
+        // 1. Check what this node has seen (not yet flushed to Redis)
+        if (isLocallyOnline(deviceName, now)) {
+            return DeviceOnline.ONLINE;
+        }
+
+        // 2. Check last heartbeat in Redis (written by any node)
+        String heartbeatKey = DeviceActivityTracker.HEARTBEAT_PREFIX + deviceName;
         BoundValueOperations heartbeatOps = redisTemplate.boundValueOps(heartbeatKey);
         Long lastSeen = (Long) heartbeatOps.get();
         
-        // 2. Check recent message activity
-        String activityKey = "device_activity:" + deviceName;
+        // 3. Check recent message activity
+        String activityKey = DeviceActivityTracker.ACTIVITY_PREFIX + deviceName;
         BoundValueOperations activityOps = redisTemplate.boundValueOps(activityKey);
         Long lastActivity = (Long) activityOps.get();
-        
-        long now = System.currentTimeMillis();
-        
+
+        return toDeviceOnline(deviceName, now, lastSeen, lastActivity);
+    }
+
+    private boolean isLocallyOnline(String deviceName, long now) {
+        return now - deviceActivityTracker.getLastHeartbeat(deviceName) < DeviceActivityTracker.HEARTBEAT_TTL_MS
+            || now - deviceActivityTracker.getLastActivity(deviceName) < DeviceActivityTracker.ACTIVITY_TTL_MS;
+    }
+
+    private DeviceOnline toDeviceOnline(String deviceName, long now, Long lastSeen, Long lastActivity) {
         // Device is ONLINE if has recent heartbeat (within 5 minutes)
         if (lastSeen != null && (now - lastSeen < 300000)) {
             return DeviceOnline.ONLINE;
@@ -142,7 +243,7 @@ public class MqttPublisher implements MqttCallback {
         }
         
         // If has any activity in past, device exists but is offline
-        if (lastSeen != null || lastActivity != null) {
+        if (lastSeen != null || lastActivity != null || deviceActivityTracker.getLastActivity(deviceName) > 0) {
             return DeviceOnline.OFFLINE;
         }
         
@@ -152,34 +253,34 @@ public class MqttPublisher implements MqttCallback {
 
     // EMQX MQTT publish with standardized topic format
     public void sendMsgAsync(String productKey, String topicFullName, String messageContent, int qos) throws Exception {
-        String emqxTopic;
-        String deviceName;
-        
+        await(publishAsync(productKey, topicFullName, messageContent, qos));
+    }
+
+    // Overloaded method for byte array
+    public void sendMsgAsync(String productKey, String topicFullName, byte[] bytes, int qos) throws Exception {
+        await(publishAsync(productKey, topicFullName, bytes, qos));
+    }
+
+    /**
+     * Publish a text command without waiting for the broker
+     *
+     * @return Future completed once the broker acknowledges the message (QoS 1/2)
+     *         or it has been written (QoS 0)
+     */
+    public CompletableFuture<Void> publishAsync(String productKey, String topicFullName, String messageContent, int qos) {
         // Use the topic exactly as provided by controllers
         // Controllers construct the topic to match device subscriptions: "/powerbank/deviceName/user/get"
-        emqxTopic = topicFullName;
-        
-        // Extract deviceName from topic for logging and tracking
-        String[] parts = topicFullName.split("/");
-        if (parts.length >= 2) {
-            deviceName = parts[1]; // parts[1] is always the deviceName in "productKey/deviceName/..." format
-        } else {
-            deviceName = "unknown";
-        }
+        String emqxTopic = topicFullName;
 
-        MqttMessage message = new MqttMessage(messageContent.getBytes());
-        message.setQos(qos);
-        message.setRetained(false);
+        // Extract deviceName from topic for logging and the /listen history.
+        // Sending does not refresh the station's activity: only frames from the
+        // device do, otherwise a silent station that keeps getting commands
+        // would never be seen as offline.
+        String deviceName = stationOf(topicFullName);
 
-        if (mqttClient != null && mqttClient.isConnected()) {
-            mqttClient.publish(emqxTopic, message);
+        return publish(emqxTopic, messageContent.getBytes(), qos).thenRun(() -> {
             System.out.println("Message sent to device " + deviceName + " on topic: " + emqxTopic);
-            
-            // Track message activity
-            String activityKey = "device_activity:" + deviceName;
-            BoundValueOperations activityOps = redisTemplate.boundValueOps(activityKey);
-            activityOps.set(System.currentTimeMillis(), 25, TimeUnit.MINUTES);
-            
+
             // Keep same logging for compatibility
             MessageBody messageBody = new MessageBody();
             messageBody.setMessageId("send_message");
@@ -190,41 +291,210 @@ public class MqttPublisher implements MqttCallback {
             messageBody.setPayload(messageContent);
             messageBody.setTimestamp(System.currentTimeMillis() / 1000);
             mqttSubscriber.putMessageBody(messageBody);
-        } else {
-            throw new Exception("MQTT client not connected to EMQX broker");
-        }
+        });
     }
 
-    // Overloaded method for byte array
-    public void sendMsgAsync(String productKey, String topicFullName, byte[] bytes, int qos) throws Exception {
+    /**
+     * Publish a binary command without waiting for the broker
+     */
+    public CompletableFuture<Void> publishAsync(String productKey, String topicFullName, byte[] bytes, int qos) {
         String emqxTopic = topicFullName; // Use topic exactly as provided
-        
-        // Extract deviceName for logging consistency  
-        String[] parts = topicFullName.split("/");
-        String deviceName = parts.length >= 2 ? parts[1] : "unknown";
 
-        MqttMessage message = new MqttMessage(bytes);
+        // Extract deviceName for logging consistency
+        String deviceName = stationOf(topicFullName);
+
+        return publish(emqxTopic, bytes, qos).thenRun(() ->
+            System.out.println("Message sent to device " + deviceName + " on topic: " + emqxTopic));
+    }
+
+    /**
+     * Publish within the in-flight window
+     *
+     * At most maxInflight messages are outstanding with the broker per
+     * connection. Publishes beyond that wait in the connection's queue (up to
+     * maxQueued, in order) and are sent from the ack callback that frees a
+     * slot, so no caller thread ever blocks here. This matters because
+     * publishes are also issued from completion stages running on Paho
+     * callback and scheduler threads. A publish that waited longer than
+     * acquireTimeoutMs fails instead of being sent, and a full queue fails
+     * the publish right away.
+     */
+    private CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if (connections.isEmpty()) {
+            result.completeExceptionally(new Exception("MQTT client not connected to EMQX broker"));
+            return result;
+        }
+        Connection connection = connectionFor(topic);
+        if (!connection.client.isConnected()) {
+            result.completeExceptionally(new Exception("MQTT client not connected to EMQX broker"));
+            return result;
+        }
+
+        MqttMessage message = new MqttMessage(payload);
         message.setQos(qos);
         message.setRetained(false);
 
-        if (mqttClient != null && mqttClient.isConnected()) {
-            mqttClient.publish(emqxTopic, message);
-            System.out.println("Message sent to device " + deviceName + " on topic: " + emqxTopic);
-        } else {
-            throw new Exception("MQTT client not connected");
+        if (connection.queued.incrementAndGet() > maxQueued) {
+            connection.queued.decrementAndGet();
+            result.completeExceptionally(new Exception("MQTT publish queue full (" + maxInflight + " in flight, "
+                + maxQueued + " queued)"));
+            return result;
+        }
+        connection.waiting.add(new PendingPublish(topic, message, result, System.currentTimeMillis() + acquireTimeoutMs));
+        drain(connection);
+        return result;
+    }
+
+    /**
+     * Send queued publishes while the connection has free slots
+     * Called after every enqueue and every ack; never blocks.
+     */
+    private void drain(Connection connection) {
+        while (!connection.waiting.isEmpty() && connection.inflight.tryAcquire()) {
+            PendingPublish pending = connection.waiting.poll();
+            if (pending == null) {
+                // Another thread took it; give the slot back and re-check
+                connection.inflight.release();
+                continue;
+            }
+            connection.queued.decrementAndGet();
+            if (System.currentTimeMillis() > pending.deadline) {
+                connection.inflight.release();
+                pending.result.completeExceptionally(new Exception("MQTT publish window full (" + maxInflight
+                    + " in flight) for " + acquireTimeoutMs + " ms"));
+                continue;
+            }
+            send(connection, pending);
+        }
+    }
+
+    private void send(Connection connection, PendingPublish pending) {
+        try {
+            connection.client.publish(pending.topic, pending.message, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    connection.inflight.release();
+                    drain(connection);
+                    pending.result.complete(null);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    connection.inflight.release();
+                    drain(connection);
+                    pending.result.completeExceptionally(exception);
+                }
+            });
+        } catch (Exception e) {
+            connection.inflight.release();
+            pending.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Messages currently awaiting broker acknowledgement (all connections)
+     */
+    public int getInflightCount() {
+        int count = 0;
+        for (Connection connection : connections) {
+            count += maxInflight - connection.inflight.availablePermits();
+        }
+        return count;
+    }
+
+    /**
+     * Messages waiting for a free in-flight slot (all connections)
+     */
+    public int getQueuedCount() {
+        int count = 0;
+        for (Connection connection : connections) {
+            count += connection.queued.get();
         }
+        return count;
     }
 
+    public int getConnectionCount() {
+        return connections.size();
+    }
 
+    private static void await(CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
 
     // Compatibility methods for existing code
+    /**
+     * Status of many devices at once
+     * Devices seen recently by this node are answered locally; the rest are
+     * fetched with one MGET per STATUS_BATCH_SIZE devices (heartbeat and
+     * activity keys together) instead of two GETs per device.
+     */
     public Map<String, DeviceOnline> getDeviceStatusMap(String productKey, String... deviceNames) {
         Map<String, DeviceOnline> statusMap = new HashMap<>();
+        long now = System.currentTimeMillis();
+
+        List<String> remote = new ArrayList<>();
         for (String deviceName : deviceNames) {
-            statusMap.put(deviceName, getDeviceStatus(productKey, deviceName));
+            if (isLocallyOnline(deviceName, now)) {
+                statusMap.put(deviceName, DeviceOnline.ONLINE);
+            } else {
+                remote.add(deviceName);
+            }
+        }
+
+        for (int from = 0; from < remote.size(); from += STATUS_BATCH_SIZE) {
+            List<String> batch = remote.subList(from, Math.min(from + STATUS_BATCH_SIZE, remote.size()));
+            List<String> keys = new ArrayList<>(batch.size() * 2);
+            for (String deviceName : batch) {
+                keys.add(DeviceActivityTracker.HEARTBEAT_PREFIX + deviceName);
+                keys.add(DeviceActivityTracker.ACTIVITY_PREFIX + deviceName);
+            }
+
+            List<Object> values = redisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < batch.size(); i++) {
+                Long lastSeen = values == null ? null : (Long) values.get(i * 2);
+                Long lastActivity = values == null ? null : (Long) values.get(i * 2 + 1);
+                statusMap.put(batch.get(i), toDeviceOnline(batch.get(i), now, lastSeen, lastActivity));
+            }
         }
         return statusMap;
     }
 
 
-}
\ No newline at end of file
+    /**
+     * One broker connection with its own in-flight window and wait queue
+     */
+    private static class Connection {
+        final MqttAsyncClient client;
+        final Semaphore inflight;
+        final Queue<PendingPublish> waiting = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+
+        Connection(MqttAsyncClient client, int maxInflight) {
+            this.client = client;
+            this.inflight = new Semaphore(maxInflight);
+        }
+    }
+
+    private static class PendingPublish {
+        final String topic;
+        final MqttMessage message;
+        final CompletableFuture<Void> result;
+        final long deadline;
+
+        PendingPublish(String topic, MqttMessage message, CompletableFuture<Void> result, long deadline) {
+            this.topic = topic;
+            this.message = message;
+            this.result = result;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -4,25 +4,23 @@ import com.demo.common.MessageBody;
 import com.demo.common.AppConfig;
 import com.demo.mqtt.handler.CommandHandlerRegistry;
 import com.demo.serialport.SerialPortData;
-import com.demo.tools.ByteUtils;
-import org.apache.commons.codec.binary.Base64;
 import org.eclipse.paho.client.mqttv3.*;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.BoundValueOperations;
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
 /**
  * MQTT Subscriber for receiving device messages
  * 
  * Subscribes to device topics and dispatches messages to appropriate handlers.
  * Uses CommandHandlerRegistry for scalable command processing.
+ * The Paho callback only enqueues into MqttIngestPipeline; processing runs
+ * on the pipeline workers.
  */
 @Component
 public class MqttSubscriber implements MqttCallback {
@@ -31,15 +29,34 @@ public class MqttSubscriber implements MqttCallback {
     private AppConfig appConfig;
 
     @Autowired
-    private RedisTemplate redisTemplate;
+    private CommandHandlerRegistry commandHandlerRegistry;
 
     @Autowired
-    private CommandHandlerRegistry commandHandlerRegistry;
+    private MqttIngestPipeline mqttIngestPipeline;
+
+    @Autowired
+    private DeviceActivityTracker deviceActivityTracker;
+
+    @Autowired
+    private DuplicateFilter duplicateFilter;
+
+    /**
+     * Subscribe through EMQX shared subscriptions ($share/{group}/...) so the
+     * broker spreads device traffic across all instances in the group
+     */
+    @Value("${mqtt.shared.enabled:false}")
+    private boolean sharedSubscription;
+
+    @Value("${mqtt.shared.group:device-ingest}")
+    private String sharedGroup;
 
     private MqttClient mqttClient;
     private Exception exception;
     private boolean isRunning = false;
-    private final List<MessageBody> messageBodys = new ArrayList<>();
+    @Value("${mqtt.listen.historySize:100}")
+    private int historySize;
+
+    private MessageHistory messageHistory;
 
     /**
      * Auto-start MQTT Subscriber on application startup
@@ -47,8 +64,10 @@ public class MqttSubscriber implements MqttCallback {
      */
     @PostConstruct
     public void autoStart() {
+        messageHistory = new MessageHistory(historySize);
         try {
             System.out.println("🚀 Auto-starting MQTT Subscriber...");
+            mqttIngestPipeline.start(this::processMessage);
             startQueue();
             System.out.println("✅ MQTT Subscriber auto-started successfully");
         } catch (Exception e) {
@@ -98,8 +117,8 @@ public class MqttSubscriber implements MqttCallback {
             String productKey = appConfig.getProductKey();
             
             // Primary subscriptions - match Device-related tools format
-            String updateTopic = "/" + productKey + "/+/user/update";
-            String heartTopic = "/" + productKey + "/+/user/heart";
+            String updateTopic = subscriptionTopic("/" + productKey + "/+/user/update");
+            String heartTopic = subscriptionTopic("/" + productKey + "/+/user/heart");
             
             mqttClient.subscribe(updateTopic, 1);
             mqttClient.subscribe(heartTopic, 1);
@@ -118,6 +137,18 @@ public class MqttSubscriber implements MqttCallback {
         }
     }
 
+    /**
+     * Wrap a topic filter in $share/{group}/ when shared subscription is enabled
+     * Messages are still delivered with the original topic, so parsing is unchanged.
+     */
+    private String subscriptionTopic(String topic) {
+        if (!sharedSubscription) {
+            return topic;
+        }
+        // Filter is kept verbatim, leading slash included: $share/group//pk/+/user/update
+        return "$share/" + sharedGroup + "/" + topic;
+    }
+
     public void stopQueue() throws Exception {
         isRunning = false;
         if (mqttClient != null && mqttClient.isConnected()) {
@@ -153,47 +184,45 @@ public class MqttSubscriber implements MqttCallback {
                 deviceName = "unknown";
                 messageType = "update";
             }
-            
-            // Update device activity and heartbeat timestamps in Redis (same as ApiController)
-            long now = System.currentTimeMillis();
-
-            // Update device activity (checked by getDeviceStatus) - 25 minutes timeout
-            String activityKey = "device_activity:" + deviceName;
-            BoundValueOperations activityOps = redisTemplate.boundValueOps(activityKey);
-            activityOps.set(now, 25, TimeUnit.MINUTES);
-
-            // Update device heartbeat (checked by getDeviceStatus) - 5 minutes timeout
-            String heartbeatKey = "device_heartbeat:" + deviceName;
-            BoundValueOperations heartbeatOps = redisTemplate.boundValueOps(heartbeatKey);
-            heartbeatOps.set(now, 5, TimeUnit.MINUTES);
-            
-            // Handle heartbeat messages
-            if ("heart".equals(messageType)) {
-                System.out.println("💓 Heartbeat from device: " + deviceName);
-            }
-            
-            // Process as upload message (device responses use "update" topic)
-            if ("update".equals(messageType)) {
-                messageType = "upload"; // Normalize for handlerMessage
-            }
-            
-            // Convert MQTT message to MessageBody format
-            MessageBody messageBody = new MessageBody();
-            messageBody.setTopic(topic);
-            messageBody.setDeviceName(deviceName);
-            messageBody.setProductKey(appConfig.getProductKey());
-            messageBody.setPayload(Base64.encodeBase64String(message.getPayload()));
-            messageBody.setMessageType(messageType);
-            messageBody.setTimestamp(System.currentTimeMillis() / 1000);
-            messageBody.setMessageId(UUID.randomUUID().toString());
-
-            handlerMessage(messageBody);
+
+            // Hand off to the ingest workers; nothing else runs on the Paho thread
+            mqttIngestPipeline.submit(deviceName, messageType, topic, message.getPayload());
         } catch (Exception e) {
             System.err.println("Error processing MQTT message: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    /**
+     * Process one inbound message (called on an ingest worker, in order per device)
+     */
+    private void processMessage(String deviceName, String messageType, String topic, byte[] payload, long receivedAt) {
+        // Update device activity and heartbeat timestamps (flushed to Redis in batches)
+        deviceActivityTracker.touch(deviceName, receivedAt);
+        
+        // Handle heartbeat messages
+        if ("heart".equals(messageType)) {
+            System.out.println("💓 Heartbeat from device: " + deviceName);
+        }
+        
+        // Process as upload message (device responses use "update" topic)
+        if ("update".equals(messageType)) {
+            messageType = "upload"; // Normalize for handlerMessage
+        }
+        
+        // Convert MQTT message to MessageBody format
+        MessageBody messageBody = new MessageBody();
+        messageBody.setTopic(topic);
+        messageBody.setDeviceName(deviceName);
+        messageBody.setProductKey(appConfig.getProductKey());
+        messageBody.setPayloadBytes(payload);
+        messageBody.setMessageType(messageType);
+        messageBody.setTimestamp(receivedAt / 1000);
+        messageBody.setMessageId(UUID.randomUUID().toString());
+
+        handlerMessage(messageBody);
+    }
+
     @Override
     public void deliveryComplete(IMqttDeliveryToken token) {
         // Not used for subscriber
@@ -216,7 +245,15 @@ public class MqttSubscriber implements MqttCallback {
         
         byte[] bytes = messageBody.getPayloadAsBytes();
         int cmd = SerialPortData.checkCMD(bytes);
-        String rawHex = ByteUtils.to16Hexs(bytes);
+
+        // Broker redelivery (QoS 1) of an event we already handled
+        if (duplicateFilter.isDuplicate(messageBody.getDeviceName(), cmd, bytes)) {
+            System.out.println("⚠️ Duplicate CMD: 0x" + Integer.toHexString(cmd).toUpperCase()
+                + " from device: " + messageBody.getDeviceName() + " - skipped");
+            return;
+        }
+
+        String rawHex = messageBody.getPayloadAsHex();
         
         // Dispatch to appropriate handler
         commandHandlerRegistry.dispatch(cmd, messageBody, bytes, rawHex);
@@ -224,25 +261,34 @@ public class MqttSubscriber implements MqttCallback {
 
     // Keep compatibility with existing code
     public void putMessageBody(MessageBody messageBody) {
-        synchronized (messageBodys) {
-            messageBodys.add(messageBody);
-            // Keep only last 100 messages
-            if (messageBodys.size() > 100) {
-                messageBodys.remove(0);
-            }
-        }
+        messageHistory.add(messageBody);
     }
 
     public List<MessageBody> getMessageBodys() {
-        synchronized (messageBodys) {
-            return new ArrayList<>(messageBodys);
-        }
+        return messageHistory.getMessageBodys();
+    }
+
+    /**
+     * Messages newer than a cursor, oldest first
+     *
+     * @param afterSeq Last sequence the caller has seen (0 for all)
+     * @param deviceName Only messages for this device (null for all)
+     */
+    public List<MessageHistory.Entry> getMessageEntries(long afterSeq, String deviceName) {
+        return messageHistory.snapshot(afterSeq, deviceName);
     }
 
     public void clearMessageBody() {
-        synchronized (messageBodys) {
-            messageBodys.clear();
-        }
+        messageHistory.clear();
+    }
+
+    /**
+     * Ingest queue depth, drop and dedup counters
+     */
+    public Map<String, Object> getIngestStats() {
+        Map<String, Object> stats = mqttIngestPipeline.getStats();
+        stats.put("dedup", duplicateFilter.getStats());
+        return stats;
     }
 
     public boolean isRunning() {
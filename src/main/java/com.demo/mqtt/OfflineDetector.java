@@ -0,0 +1,368 @@
+package com.demo.mqtt;
+
+import com.demo.connector.SyncOutbox;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proactive OFFLINE detection with a hashed timer wheel
+ *
+ * Every station seen by this node has one deadline node in the wheel. A
+ * frame from the station only moves the node's deadline forward (a single
+ * volatile write); when the wheel reaches the node's slot it is either
+ * re-armed for the new deadline or, if the station has been silent for the
+ * activity TTL, reported OFFLINE. Expired stations of one tick are checked
+ * against Redis in a single MGET (another node may still be receiving them,
+ * e.g. with shared subscriptions) and then queued for Django in the
+ * SyncOutbox.
+ *
+ * A station that reports again after being detected OFFLINE is sent ONLINE.
+ *
+ * Every node runs its own wheel, so each transition is claimed in Redis
+ * before it is reported: OFFLINE only by the node whose SET NX of the
+ * station's device_offline_report: key succeeds, ONLINE only by the node
+ * whose DEL of that key removes it. EMQX's connect/disconnect webhook goes
+ * through the same claim (reportConnected/reportDisconnected), so Django gets
+ * one report per transition however many nodes or webhooks saw it. If Redis
+ * is unreachable the node reports on its own, as before (a duplicate is
+ * better than a missed transition).
+ */
+@Component
+public class OfflineDetector {
+
+    /**
+     * Set while a station is reported OFFLINE; claims the OFFLINE/ONLINE transitions across nodes
+     */
+    public static final String OFFLINE_REPORT_PREFIX = "device_offline_report:";
+
+    /**
+     * Stations that never come back must not keep their report key forever
+     */
+    private static final long OFFLINE_REPORT_TTL_MS = TimeUnit.DAYS.toMillis(7);
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    @Autowired
+    private SyncOutbox syncOutbox;
+
+    @Autowired
+    private StationSnapshotStore stationSnapshotStore;
+
+    @Value("${device.offline.enabled:true}")
+    private boolean enabled;
+
+    @Value("${device.offline.tickMs:1000}")
+    private long tickMs;
+
+    @Value("${device.offline.wheelSize:512}")
+    private int wheelSize;
+
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private final Queue<Node> pending = new ConcurrentLinkedQueue<>();
+    private final Set<String> reportedOffline = ConcurrentHashMap.newKeySet();
+
+    // Only touched by the tick thread
+    private List<Node>[] wheel;
+    private long tick;
+
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "device-offline-wheel");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    @SuppressWarnings("unchecked")
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        tickMs = Math.max(10, tickMs);
+        wheel = new List[Math.max(16, wheelSize)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        tick = System.currentTimeMillis() / tickMs;
+        ticker.scheduleAtFixedRate(this::advanceSafely, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * The station sent a frame at the given time
+     */
+    public void onSeen(String deviceName, long timestamp) {
+        if (!enabled) {
+            return;
+        }
+        long deadline = timestamp + DeviceActivityTracker.ACTIVITY_TTL_MS;
+        Node node = nodes.get(deviceName);
+        if (node == null) {
+            Node created = new Node(deviceName, deadline);
+            node = nodes.putIfAbsent(deviceName, created);
+            if (node == null) {
+                // Newly tracked: the tick thread checks whether it was reported OFFLINE
+                pending.add(created);
+                return;
+            }
+        }
+        if (deadline > node.deadline) {
+            node.deadline = deadline;
+        }
+    }
+
+    /**
+     * Stop tracking a station (disconnect already reported elsewhere)
+     */
+    public void remove(String deviceName) {
+        Node node = nodes.remove(deviceName);
+        if (node != null) {
+            node.removed = true;
+        }
+        reportedOffline.remove(deviceName);
+    }
+
+    /**
+     * EMQX reported the station connected: report ONLINE if this call wins the DEL
+     * (nothing is sent if the station was never reported OFFLINE)
+     */
+    public void reportConnected(String deviceName) {
+        List<String> claimed = claim(Collections.singletonList(deviceName), false, true);
+        reportedOffline.remove(deviceName);
+        if (!claimed.isEmpty()) {
+            System.out.println("🟢 Offline detector: " + deviceName + " connected, reporting ONLINE");
+            sendStatus(claimed, "ONLINE");
+        }
+    }
+
+    /**
+     * EMQX reported the station disconnected: report OFFLINE if this call wins the SET NX
+     */
+    public void reportDisconnected(String deviceName) {
+        List<String> claimed = claim(Collections.singletonList(deviceName), true, true);
+        if (!claimed.isEmpty()) {
+            reportedOffline.add(deviceName);
+            System.out.println("🔴 Offline detector: " + deviceName + " disconnected, reporting OFFLINE");
+            sendStatus(claimed, "OFFLINE");
+        }
+    }
+
+    public int getTrackedCount() {
+        return nodes.size();
+    }
+
+    private void advanceSafely() {
+        try {
+            advance();
+        } catch (Exception e) {
+            System.err.println("❌ Offline detector tick failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Process every tick up to now (catches up if a run was delayed)
+     */
+    private void advance() {
+        long nowTick = System.currentTimeMillis() / tickMs;
+        List<String> tracked = new ArrayList<>();
+        Node node;
+        while ((node = pending.poll()) != null) {
+            schedule(node);
+            tracked.add(node.deviceName);
+        }
+        if (!tracked.isEmpty()) {
+            reportOnline(tracked);
+        }
+
+        List<Node> expired = new ArrayList<>();
+        while (tick < nowTick) {
+            tick++;
+            List<Node> slot = wheel[(int) (tick % wheel.length)];
+            if (slot.isEmpty()) {
+                continue;
+            }
+            List<Node> due = new ArrayList<>(slot);
+            slot.clear();
+            for (Node item : due) {
+                if (item.removed) {
+                    continue;
+                }
+                if (item.deadline / tickMs > tick) {
+                    // Seen again since it was scheduled: re-arm for the new deadline
+                    schedule(item);
+                } else {
+                    expired.add(item);
+                }
+            }
+        }
+
+        if (!expired.isEmpty()) {
+            expire(expired);
+        }
+    }
+
+    private void schedule(Node node) {
+        long deadlineTick = Math.max(node.deadline / tickMs, tick + 1);
+        wheel[(int) (deadlineTick % wheel.length)].add(node);
+    }
+
+    /**
+     * Confirm expired stations against Redis, then report the silent ones
+     */
+    @SuppressWarnings("unchecked")
+    private void expire(List<Node> expired) {
+        List<String> keys = new ArrayList<>(expired.size());
+        for (Node node : expired) {
+            keys.add(DeviceActivityTracker.ACTIVITY_PREFIX + node.deviceName);
+        }
+
+        List<Object> values = null;
+        try {
+            values = redisTemplate.opsForValue().multiGet(keys);
+        } catch (Exception e) {
+            System.err.println("❌ Offline detector Redis check failed: " + e.getMessage());
+        }
+
+        List<String> offline = new ArrayList<>();
+        for (int i = 0; i < expired.size(); i++) {
+            Node node = expired.get(i);
+            Object lastActivity = values == null ? null : values.get(i);
+            if (lastActivity instanceof Long) {
+                long deadline = (Long) lastActivity + DeviceActivityTracker.ACTIVITY_TTL_MS;
+                if (deadline / tickMs > tick) {
+                    // Another node still hears this station
+                    if (deadline > node.deadline) {
+                        node.deadline = deadline;
+                    }
+                    schedule(node);
+                    continue;
+                }
+            }
+            if (nodes.remove(node.deviceName, node)) {
+                reportedOffline.add(node.deviceName);
+                stationSnapshotStore.remove(node.deviceName);
+                offline.add(node.deviceName);
+            }
+        }
+
+        List<String> claimed = claim(offline, true, true);
+        if (!claimed.isEmpty()) {
+            System.out.println("🔴 Offline detector: " + claimed.size() + " station(s) silent for "
+                + TimeUnit.MILLISECONDS.toMinutes(DeviceActivityTracker.ACTIVITY_TTL_MS) + " min: " + claimed);
+            sendStatus(claimed, "OFFLINE");
+        }
+    }
+
+    /**
+     * Report ONLINE for newly tracked stations that had been reported OFFLINE
+     */
+    private void reportOnline(List<String> deviceNames) {
+        List<String> claimed = claim(deviceNames, false, false);
+        for (String deviceName : deviceNames) {
+            reportedOffline.remove(deviceName);
+        }
+        if (!claimed.isEmpty()) {
+            System.out.println("🟢 Offline detector: " + claimed.size() + " station(s) reporting again: " + claimed);
+            sendStatus(claimed, "ONLINE");
+        }
+    }
+
+    /**
+     * Claim the OFFLINE (SET NX) or ONLINE (DEL) transition of each station in one pipeline
+     *
+     * @param reportOnFailure If Redis fails, report every station rather than only
+     *                        those this node reported OFFLINE itself
+     * @return Stations this node won and should report
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> claim(List<String> deviceNames, boolean offline, boolean reportOnFailure) {
+        List<String> claimed = new ArrayList<>();
+        if (deviceNames.isEmpty()) {
+            return claimed;
+        }
+
+        final RedisSerializer keySerializer = redisTemplate.getKeySerializer();
+        final RedisSerializer valueSerializer = redisTemplate.getValueSerializer();
+        final byte[] reportedAt = valueSerializer.serialize(System.currentTimeMillis());
+        List<Object> results;
+        try {
+            results = redisTemplate.executePipelined(new RedisCallback<Object>() {
+                @Override
+                public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                    for (String deviceName : deviceNames) {
+                        byte[] key = keySerializer.serialize(OFFLINE_REPORT_PREFIX + deviceName);
+                        if (offline) {
+                            // SET NX PX is a status reply, which pipelines drop from the results
+                            connection.setNX(key, reportedAt);
+                            connection.pExpire(key, OFFLINE_REPORT_TTL_MS);
+                        } else {
+                            connection.del(key);
+                        }
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            System.err.println("❌ Offline detector Redis claim failed, reporting locally: " + e.getMessage());
+            for (String deviceName : deviceNames) {
+                if (reportOnFailure || reportedOffline.contains(deviceName)) {
+                    claimed.add(deviceName);
+                }
+            }
+            return claimed;
+        }
+
+        int stride = offline ? 2 : 1;
+        for (int i = 0; i < deviceNames.size(); i++) {
+            Object result = i * stride < results.size() ? results.get(i * stride) : null;
+            boolean won = offline
+                ? Boolean.TRUE.equals(result)
+                : result instanceof Long && (Long) result > 0;
+            if (won) {
+                claimed.add(deviceNames.get(i));
+            }
+        }
+        return claimed;
+    }
+
+    private void sendStatus(List<String> deviceNames, String status) {
+        for (String deviceName : deviceNames) {
+            syncOutbox.enqueueDeviceStatus(deviceName, status);
+        }
+    }
+
+    private static class Node {
+        final String deviceName;
+        volatile long deadline;
+        volatile boolean removed;
+
+        Node(String deviceName, long deadline) {
+            this.deviceName = deviceName;
+            this.deadline = deadline;
+        }
+    }
+}
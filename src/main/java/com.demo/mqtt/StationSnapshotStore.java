@@ -0,0 +1,122 @@
+package com.demo.mqtt;
+
+import com.demo.message.ReceiveUpload;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Last-known station state, fed by every 0x10 frame
+ *
+ * Updated from the periodic HTTP upload (/api/rentbox/upload/data) and from
+ * CHECK replies received over MQTT. Read-mostly callers can ask for a
+ * snapshot no older than a given age instead of round-tripping to the device.
+ *
+ * Snapshots are kept per node; a node that has not seen a frame for a
+ * station simply reports no snapshot and the caller goes to the device.
+ * Snapshots older than maxAgeMs are swept out, and OfflineDetector drops a
+ * station's snapshot as soon as it reports it OFFLINE.
+ */
+@Component
+public class StationSnapshotStore {
+
+    @Value("${device.snapshot.maxAgeMs:1500000}")
+    private long maxAgeMs;
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "station-snapshot-sweep");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        maxAgeMs = Math.max(1000, maxAgeMs);
+        long interval = Math.min(maxAgeMs, TimeUnit.MINUTES.toMillis(1));
+        sweeper.scheduleWithFixedDelay(this::evictStale, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Record a parsed 0x10 frame for a station
+     */
+    public void update(String rentboxSN, ReceiveUpload receiveUpload) {
+        snapshots.put(rentboxSN, new Snapshot(receiveUpload, System.currentTimeMillis()));
+    }
+
+    /**
+     * Get the snapshot if it is at most maxAgeMs old
+     *
+     * @param rentboxSN Station serial number
+     * @param maxAgeMs Maximum acceptable age in milliseconds
+     * @return Snapshot, or null if missing or stale
+     */
+    public Snapshot getFresh(String rentboxSN, long maxAgeMs) {
+        Snapshot snapshot = snapshots.get(rentboxSN);
+        if (snapshot == null || snapshot.getAgeMs() > maxAgeMs) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Get the last snapshot regardless of age
+     */
+    public Snapshot get(String rentboxSN) {
+        return snapshots.get(rentboxSN);
+    }
+
+    public void remove(String rentboxSN) {
+        snapshots.remove(rentboxSN);
+    }
+
+    public int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * Drop snapshots older than maxAgeMs (stations that stopped reporting)
+     */
+    public void evictStale() {
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        snapshots.values().removeIf(snapshot -> snapshot.getReceivedAt() < cutoff);
+    }
+
+    /**
+     * Immutable parsed frame with its receive time
+     */
+    public static class Snapshot {
+        private final ReceiveUpload receiveUpload;
+        private final long receivedAt;
+
+        Snapshot(ReceiveUpload receiveUpload, long receivedAt) {
+            this.receiveUpload = receiveUpload;
+            this.receivedAt = receivedAt;
+        }
+
+        public ReceiveUpload getReceiveUpload() {
+            return receiveUpload;
+        }
+
+        public long getReceivedAt() {
+            return receivedAt;
+        }
+
+        public long getAgeMs() {
+            return System.currentTimeMillis() - receivedAt;
+        }
+    }
+}
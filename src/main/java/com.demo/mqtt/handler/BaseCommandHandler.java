@@ -2,6 +2,7 @@ package com.demo.mqtt.handler;
 
 import com.demo.common.MessageBody;
 import com.demo.common.TransactionLogger;
+import com.demo.mqtt.CommandResponseRegistry;
 import org.springframework.data.redis.core.BoundValueOperations;
 import org.springframework.data.redis.core.RedisTemplate;
 
@@ -37,6 +38,7 @@ public abstract class BaseCommandHandler implements CommandHandler {
         
         ops.set(bytes, ttl, TimeUnit.SECONDS);
         System.out.println("✅ " + getCommandName() + " response cached for device: " + deviceName);
+        publishResponse(key, redisTemplate);
         return true;
     }
     
@@ -65,6 +67,21 @@ public abstract class BaseCommandHandler implements CommandHandler {
         
         ops.set(bytes, ttl, TimeUnit.SECONDS);
         System.out.println("✅ " + getCommandName() + " response cached for device: " + deviceName);
+        publishResponse(key, redisTemplate);
+    }
+    
+    /**
+     * Announce a cached response so waiters on other nodes wake up immediately
+     * 
+     * @param key Redis key the response was cached under
+     * @param redisTemplate Redis template
+     */
+    protected void publishResponse(String key, RedisTemplate redisTemplate) {
+        try {
+            redisTemplate.convertAndSend(CommandResponseRegistry.RESPONSE_CHANNEL, key);
+        } catch (Exception e) {
+            System.err.println("❌ Failed to publish " + getCommandName() + " response notification: " + e.getMessage());
+        }
     }
     
     /**
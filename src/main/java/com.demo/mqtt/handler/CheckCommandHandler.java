@@ -4,6 +4,8 @@ import com.demo.common.MessageBody;
 import com.demo.common.TransactionLogger;
 import com.demo.message.Powerbank;
 import com.demo.message.ReceiveUpload;
+import com.demo.mqtt.StationSnapshotStore;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
 
@@ -28,6 +30,9 @@ public class CheckCommandHandler extends BaseCommandHandler {
     public static final String CMD_NAME = "CHECK";
     public static final String REDIS_KEY_PREFIX = "check:";
     
+    @Autowired
+    private StationSnapshotStore stationSnapshotStore;
+    
     @Override
     public int getCommandCode() {
         return CMD_CODE;
@@ -51,14 +56,27 @@ public class CheckCommandHandler extends BaseCommandHandler {
         RedisTemplate redisTemplate,
         TransactionLogger transactionLogger
     ) {
+        // Every check reply refreshes the station snapshot, even if nobody is waiting
+        ReceiveUpload upload;
+        try {
+            upload = new ReceiveUpload(bytes);
+            stationSnapshotStore.update(messageBody.getDeviceName(), upload);
+        } catch (Exception e) {
+            System.err.println("❌ Failed to parse " + CMD_NAME + ": " + e.getMessage());
+            upload = null;
+        }
+        
         // Cache response for sync polling
         if (!cacheResponse(messageBody.getDeviceName(), bytes, redisTemplate)) {
             return; // Key not set, no one waiting for response
         }
         
-        // Parse and log transaction
+        if (upload == null) {
+            return;
+        }
+        
+        // Log transaction
         try {
-            ReceiveUpload upload = new ReceiveUpload(bytes);
             List<Map<String, Object>> powerbanksData = parsePowerbanks(upload);
             logTransaction(messageBody, rawHex, powerbanksData, transactionLogger);
         } catch (Exception e) {
@@ -80,7 +98,7 @@ public class CheckCommandHandler extends BaseCommandHandler {
                 pbMap.put("status", powerbank.getStatus());
                 pbMap.put("power", powerbank.getPower());
                 pbMap.put("snAsString", powerbank.getSnAsString());
-                pbMap.put("snAsInt", powerbank.getSnAsInt());
+                pbMap.put("snAsInt", Integer.toUnsignedLong(powerbank.getSnAsInt()));
                 pbMap.put("message", powerbank.getMessage());
                 result.add(pbMap);
             }
@@ -2,6 +2,7 @@ package com.demo.mqtt.handler;
 
 import com.demo.common.MessageBody;
 import com.demo.common.TransactionLogger;
+import com.demo.mqtt.CommandResponseRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
@@ -32,6 +33,9 @@ public class CommandHandlerRegistry {
     @Autowired
     private TransactionLogger transactionLogger;
     
+    @Autowired
+    private CommandResponseRegistry commandResponseRegistry;
+    
     private final Map<Integer, CommandHandler> handlerMap = new HashMap<>();
     
     @PostConstruct
@@ -71,6 +75,13 @@ public class CommandHandlerRegistry {
             System.err.println("❌ Handler error for " + handler.getCommandName() + ": " + e.getMessage());
             e.printStackTrace();
             return false;
+        } finally {
+            // Wake up local waiters only after the handler has cached and logged the reply:
+            // completing the waiter expires the Redis key, which the handler checks first
+            String keyPrefix = handler.getRedisKeyPrefix();
+            if (keyPrefix != null && commandResponseRegistry.complete(keyPrefix + messageBody.getDeviceName(), bytes)) {
+                System.out.println("⚡ " + handler.getCommandName() + " response delivered to local waiter: " + messageBody.getDeviceName());
+            }
         }
     }
     
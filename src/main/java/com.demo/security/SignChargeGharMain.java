@@ -31,13 +31,24 @@ public class SignChargeGharMain {
      * @return Base64 encoded signature
      */
     public String generateSignature(String payload, long timestamp) throws NoSuchAlgorithmException, InvalidKeyException {
-        String message = payload + timestamp;
-        
+        return generateSignature(payload.getBytes(StandardCharsets.UTF_8), timestamp);
+    }
+    
+    /**
+     * Generate HMAC-SHA256 signature over an already encoded request body
+     * Same result as the String version for the UTF-8 bytes of that string.
+     * 
+     * @param payload JSON request body (UTF-8 bytes, exactly as sent)
+     * @param timestamp Unix timestamp in seconds
+     * @return Base64 encoded signature
+     */
+    public String generateSignature(byte[] payload, long timestamp) throws NoSuchAlgorithmException, InvalidKeyException {
         SecretKeySpec keySpec = new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), ALGORITHM);
         Mac mac = Mac.getInstance(ALGORITHM);
         mac.init(keySpec);
         
-        byte[] rawHmac = mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
+        mac.update(payload);
+        byte[] rawHmac = mac.doFinal(String.valueOf(timestamp).getBytes(StandardCharsets.UTF_8));
         return Base64.getEncoder().encodeToString(rawHmac);
     }
     
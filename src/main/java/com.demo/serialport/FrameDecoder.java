@@ -0,0 +1,94 @@
+package com.demo.serialport;
+
+import com.demo.tools.ByteUtils;
+
+/**
+ * Offset-based reader for 0xA8 serial frames
+ *
+ * Frame layout: [0xA8][len_hi][len_lo][cmd][body ...][checksum]
+ *
+ * All reads go straight to the frame byte[] at an offset, so parsing a
+ * frame does not copy it into int[] arrays or slice it per field.
+ */
+public final class FrameDecoder {
+
+    public static final int HEAD = 0XA8;
+
+    /**
+     * Offset of the first body byte (head + 2 length bytes + cmd)
+     */
+    public static final int BODY_OFFSET = 4;
+
+    /**
+     * Head + length + cmd + checksum
+     */
+    public static final int OVERHEAD = 5;
+
+    private FrameDecoder() {
+    }
+
+    /**
+     * Validate head and length fields of a frame
+     *
+     * @throws SerialPortException same errors as the original SerialPortData checks
+     */
+    public static void validate(byte[] bytes) throws SerialPortException {
+        if (bytes.length < OVERHEAD) {
+            throw new SerialPortException(SerialPortError.PACKAGE_SIZE);
+        }
+
+        int head = u8(bytes, 0);
+        if (head != HEAD) {
+            throw new SerialPortException(SerialPortError.NOT1, (ByteUtils.to16Hex(HEAD) + "!=" + ByteUtils.to16Hex(head)));
+        }
+
+        if (u16(bytes, 1) != bytes.length) {
+            throw new SerialPortException(SerialPortError.PACKAGE_SIZE);
+        }
+    }
+
+    public static int cmd(byte[] bytes) {
+        return u8(bytes, 3);
+    }
+
+    public static int bodyLength(byte[] bytes) {
+        return bytes.length - OVERHEAD;
+    }
+
+    /**
+     * Unsigned byte at offset
+     */
+    public static int u8(byte[] bytes, int offset) {
+        return bytes[offset] & 0xFF;
+    }
+
+    /**
+     * Big-endian unsigned 16-bit value at offset
+     */
+    public static int u16(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 8 | (bytes[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Big-endian 32-bit value at offset (powerbank SN)
+     * Returned as the raw 32 bits: values from 0x80000000 up are negative,
+     * so test for "no SN" with == 0 and print with Integer.toUnsignedString.
+     */
+    public static int u32(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24
+            | (bytes[offset + 1] & 0xFF) << 16
+            | (bytes[offset + 2] & 0xFF) << 8
+            | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Two's complement checksum (取反+1) of bytes[from, to)
+     */
+    public static int checksum(byte[] bytes, int from, int to) {
+        int sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += bytes[i] & 0xFF;
+        }
+        return (~sum + 1) & 0xFF;
+    }
+}
@@ -24,25 +24,13 @@ public class SerialPortData {
 
     public SerialPortData(byte[] bytes) throws SerialPortException {
         this.bytes = bytes;
-        this.ints = ByteUtils.toUnsignedInts(bytes);
 
-        if(bytes.length < 5 ){
-            throw new SerialPortException(SerialPortError.PACKAGE_SIZE);
-        }
-
-        if(ints[0] != head){
-            throw new SerialPortException(SerialPortError.NOT1, (ByteUtils.to16Hex(head) + "!=" + ByteUtils.to16Hex(ints[0])));
-        }
-
-        this.length = new int[]{ints[1], ints[2]};
-        if(ByteUtils.getJavaInt(this.length) != bytes.length){
-            throw new SerialPortException(SerialPortError.PACKAGE_SIZE);
-        }
+        // Fields are read in place; the int[] views are only built if a caller asks for them
+        FrameDecoder.validate(bytes);
 
-        this.cmd = this.ints[3];
-        this.data = ArrayUtils.subarray(this.ints, 4, bytes.length - 1);
-        this.not1 = getNOT1Value(ArrayUtils.subarray(this.ints,0, bytes.length - 1));
-        if(this.not1 != this.ints[bytes.length - 1]){
+        this.cmd = FrameDecoder.cmd(bytes);
+        this.not1 = FrameDecoder.checksum(bytes, 0, bytes.length - 1);
+        if(this.not1 != FrameDecoder.u8(bytes, bytes.length - 1)){
             //throw new SerialPortException(SerialPortError.NOT1);
         }
 
@@ -77,6 +65,11 @@ public class SerialPortData {
         }
         result = ~result + 1;
 
+        // 和为正时取反+1为负数，十六进制末两位即低8位
+        if (result < 0) {
+            return result & 0xff;
+        }
+
         String hex = Integer.toHexString(result);
         result = ByteUtils.toUnsignedInt(hex.substring(hex.length() - 2));
         return result;
@@ -95,7 +88,21 @@ public class SerialPortData {
         return cmd;
     }
 
+    /**
+     * Body byte at index (index 0 is the first byte after cmd)
+     */
+    public int getBodyByte(int index) {
+        return FrameDecoder.u8(bytes, FrameDecoder.BODY_OFFSET + index);
+    }
+
+    public int getBodyLength() {
+        return bytes.length - FrameDecoder.OVERHEAD;
+    }
+
     public int[] getData() {
+        if (data == null && bytes != null) {
+            data = ByteUtils.toUnsignedInts(ArrayUtils.subarray(bytes, FrameDecoder.BODY_OFFSET, bytes.length - 1));
+        }
         return data;
     }
 
@@ -104,10 +111,16 @@ public class SerialPortData {
     }
 
     public int[] getInts() {
+        if (ints == null && bytes != null) {
+            ints = ByteUtils.toUnsignedInts(bytes);
+        }
         return ints;
     }
 
     public int[] getLength() {
+        if (length == null && bytes != null) {
+            length = new int[]{FrameDecoder.u8(bytes, 1), FrameDecoder.u8(bytes, 2)};
+        }
         return length;
     }
 }
@@ -9,6 +9,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class ByteUtils {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     /**
      * 无符号byte
      *
@@ -118,7 +121,22 @@ public class ByteUtils {
     }
 
     public static String to16Hexs(byte... datas){
-        return to16Hexs(ArrayUtils.toObject(datas));
+        if(datas.length == 0){
+            return null;
+        }
+
+        // 每字节2位十六进制 + 分隔空格
+        char[] chars = new char[datas.length * 3 - 1];
+        for(int i = 0; i < datas.length; i ++){
+            int value = datas[i] & 0xff;
+            int pos = i * 3;
+            if(i > 0){
+                chars[pos - 1] = ' ';
+            }
+            chars[pos] = HEX_DIGITS[value >>> 4];
+            chars[pos + 1] = HEX_DIGITS[value & 0x0f];
+        }
+        return new String(chars);
     }
 
 
@@ -146,6 +164,15 @@ public class ByteUtils {
      * @return
      */
     public static int[] getMcuInt(int data, int length){
+        // 常见情况：数值能放进length个字节，直接按大端拆分
+        if(length > 0 && length <= 4 && (length == 4 || (data >= 0 && data >>> (length * 8) == 0))){
+            int[] value = new int[length];
+            for(int i = 0; i < length; i ++){
+                value[i] = (data >>> ((length - 1 - i) * 8)) & 0xff;
+            }
+            return value;
+        }
+
         String hex = ByteUtils.to16Hex(data);
         hex = StringUtils.leftPad(hex, length * 2, "0");
 
@@ -157,6 +184,21 @@ public class ByteUtils {
     }
 
     public static int getJavaInt(int[] data){
+        // 常见情况：每个元素都是无符号byte，直接按大端移位
+        if(data.length > 0 && isUnsignedBytes(data)){
+            long value = 0;
+            for(int b : data){
+                value = value << 8 | b;
+                if(value > Integer.MAX_VALUE){
+                    break;
+                }
+            }
+            if(value <= Integer.MAX_VALUE){
+                return (int) value;
+            }
+            // 溢出时走原字符串解析，保持相同的异常
+        }
+
         String hexs = ByteUtils.to16Hexs(data);
         int value = ByteUtils.toUnsignedInt(hexs);
         return value;
@@ -166,4 +208,13 @@ public class ByteUtils {
         return getJavaInt(toUnsignedInts(data));
     }
 
+    private static boolean isUnsignedBytes(int[] data){
+        for(int b : data){
+            if(b < 0 || b > 0xff){
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
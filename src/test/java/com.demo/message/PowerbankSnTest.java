@@ -0,0 +1,56 @@
+package com.demo.message;
+
+import com.demo.serialport.FrameDecoder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class PowerbankSnTest {
+
+    // 0x9ABCDEF0: high bit set, above Integer.MAX_VALUE
+    private static final byte[] HIGH_SN = {(byte) 0x9A, (byte) 0xBC, (byte) 0xDE, (byte) 0xF0};
+    private static final String HIGH_SN_STRING = "2596069104";
+
+    @Test
+    public void powerbankHighBitSnIsUnsigned() {
+        byte[] record = new byte[Powerbank.RECORD_LENGTH];
+        record[0] = 0x01;   // slot
+        record[1] = 0x01;   // status
+        System.arraycopy(HIGH_SN, 0, record, 5, 4);
+        record[9] = 80;     // power
+
+        Powerbank powerbank = new Powerbank(record, 0, 1, false, 0);
+
+        assertEquals(HIGH_SN_STRING, powerbank.getSnAsString());
+        assertNotEquals(0, powerbank.getSnAsInt());
+        assertEquals(2596069104L, Integer.toUnsignedLong(powerbank.getSnAsInt()));
+    }
+
+    @Test
+    public void emptySlotHasNoSn() {
+        Powerbank powerbank = new Powerbank(new byte[Powerbank.RECORD_LENGTH], 0, 1, false, 0);
+
+        assertEquals(0, powerbank.getSnAsInt());
+        assertEquals("NONE", powerbank.getMessage());
+    }
+
+    @Test
+    public void popupReplyHighBitSnIsUnsigned() throws Exception {
+        // [A8][len][len][31][slot][SN x4][status][checksum]
+        byte[] frame = new byte[11];
+        frame[0] = (byte) FrameDecoder.HEAD;
+        frame[2] = (byte) frame.length;
+        frame[3] = 0x31;
+        frame[4] = 0x03;
+        System.arraycopy(HIGH_SN, 0, frame, 5, 4);
+        frame[9] = 0x01;
+        frame[10] = (byte) FrameDecoder.checksum(frame, 0, frame.length - 1);
+
+        ReceivePopupSN popup = new ReceivePopupSN(frame);
+
+        assertEquals(HIGH_SN_STRING, popup.getSnAsString());
+        assertEquals(3, popup.getPinboardIndex());
+        assertEquals(0x01, popup.getStatus());
+    }
+}
@@ -0,0 +1,126 @@
+package com.demo.mqtt.handler;
+
+import com.demo.common.MessageBody;
+import com.demo.common.TransactionLogger;
+import com.demo.mqtt.CommandResponseRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandHandlerRegistryTest {
+
+    private static final String DEVICE = "864601068950000";
+
+    private final Set<String> liveKeys = ConcurrentHashMap.newKeySet();
+    private final List<String> logged = new ArrayList<>();
+
+    private CommandResponseRegistry commandResponseRegistry;
+    private CommandHandlerRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        commandResponseRegistry = new CommandResponseRegistry();
+        registry = new CommandHandlerRegistry();
+        set(registry, "handlers", Collections.<CommandHandler>singletonList(new KeyedHandler()));
+        set(registry, "transactionLogger", new RecordingLogger());
+        set(registry, "commandResponseRegistry", commandResponseRegistry);
+        registry.init();
+    }
+
+    @Test
+    public void handlerLogsReplyBeforeLocalWaiterExpiresKey() {
+        byte[] reply = {(byte) 0xA8, 0x00, 0x0B, 0x31};
+        String key = KeyedHandler.PREFIX + DEVICE;
+
+        // Same sequence as DeviceCommandUtils.sendCommandAsync: key set, waiter registered,
+        // key expired once the waiter has its reply
+        liveKeys.add(key);
+        CompletableFuture<byte[]> waiter = commandResponseRegistry.register(key);
+        waiter.whenComplete((bytes, ex) -> liveKeys.remove(key));
+
+        assertTrue(registry.dispatch(KeyedHandler.CMD, message(), reply, "A8000B31"));
+
+        assertEquals(Collections.singletonList(DEVICE), logged);
+        assertTrue(waiter.isDone());
+        assertArrayEquals(reply, waiter.join());
+        assertEquals(0, commandResponseRegistry.getPendingCount());
+    }
+
+    @Test
+    public void handlerFailureStillWakesLocalWaiter() throws Exception {
+        set(registry, "transactionLogger", null);
+        byte[] reply = {(byte) 0xA8, 0x00, 0x0B, 0x31};
+        String key = KeyedHandler.PREFIX + DEVICE;
+        liveKeys.add(key);
+        CompletableFuture<byte[]> waiter = commandResponseRegistry.register(key);
+
+        registry.dispatch(KeyedHandler.CMD, message(), reply, "A8000B31");
+
+        assertArrayEquals(reply, waiter.join());
+    }
+
+    private static MessageBody message() {
+        MessageBody messageBody = new MessageBody();
+        messageBody.setDeviceName(DEVICE);
+        messageBody.setMessageId("m-1");
+        return messageBody;
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * Like BaseCommandHandler.cacheResponse: the reply is only cached and logged
+     * while the command's key is still alive
+     */
+    private class KeyedHandler implements CommandHandler {
+        static final int CMD = 0x31;
+        static final String PREFIX = "popup_sn:";
+
+        @Override
+        public int getCommandCode() {
+            return CMD;
+        }
+
+        @Override
+        public String getCommandName() {
+            return "POPUP_SN";
+        }
+
+        @Override
+        public String getRedisKeyPrefix() {
+            return PREFIX;
+        }
+
+        @Override
+        public void handle(MessageBody messageBody, byte[] bytes, String rawHex,
+                           RedisTemplate redisTemplate, TransactionLogger transactionLogger) {
+            if (!liveKeys.contains(PREFIX + messageBody.getDeviceName())) {
+                return;
+            }
+            transactionLogger.log(messageBody.getDeviceName(), messageBody.getMessageId(), "0x31", rawHex, null);
+        }
+    }
+
+    private class RecordingLogger extends TransactionLogger {
+        @Override
+        public void log(String deviceName, String messageId, String cmd, String rawHex, Object parsedData) {
+            logged.add(deviceName);
+        }
+    }
+}